@@ -0,0 +1,181 @@
+package com.foretree.apng;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.ImageView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 检查逐帧解码合成在预热之后不再分配对象
+ */
+@RunWith(AndroidJUnit4.class)
+public class ApngRenderAllocationTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 64;
+    private static final int FRAME_COUNT = 8;
+    private static final int WARM_UP_LOOPS = 3;
+    private static final int MEASURED_FRAMES = 400;
+    // 预热之后允许的对象分配数, 与帧数无关, 只给平台内部偶尔的分配留余量
+    private static final int MAX_STEADY_ALLOCATIONS = 8;
+
+    private int fullCacheMaxBytes;
+    private File baseFile;
+
+    @Before
+    public void setUp() {
+        // 关闭小动画全缓存, 保证每帧都经过解码和合成
+        fullCacheMaxBytes = ApngBitmapCache.FULL_CACHE_MAX_BYTES;
+        ApngBitmapCache.FULL_CACHE_MAX_BYTES = 0;
+    }
+
+    @After
+    public void tearDown() {
+        ApngBitmapCache.FULL_CACHE_MAX_BYTES = fullCacheMaxBytes;
+        if (baseFile != null) {
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                getFrameFile(i).delete();
+            }
+        }
+    }
+
+    @Test
+    public void steadyStateRenderDoesNotAllocate() throws Exception {
+        ApngInfo info = new ApngInfo();
+        byte[][] frames = createAnimation(info);
+        measure(info, createMemorySource(frames), ApngFrameDecode.ComposeMode.CANVAS);
+    }
+
+    @Test
+    public void steadyStateFileRenderDoesNotAllocate() throws Exception {
+        ApngInfo info = new ApngInfo();
+        byte[][] frames = createAnimation(info);
+        measure(info, createFileSource(frames, info), ApngFrameDecode.ComposeMode.CANVAS);
+    }
+
+    @Test
+    public void steadyStatePixelsRenderDoesNotAllocate() throws Exception {
+        ApngInfo info = new ApngInfo();
+        byte[][] frames = createAnimation(info);
+        measure(info, createMemorySource(frames), ApngFrameDecode.ComposeMode.PIXELS);
+    }
+
+    // 预热之后逐帧合成, 检查没有新建bitmap, 对象分配数不随帧数增长
+    private void measure(ApngInfo info, ApngFrameSource frameSource, ApngFrameDecode.ComposeMode composeMode) {
+        Context context = InstrumentationRegistry.getTargetContext();
+        ApngDrawable drawable = new ApngDrawable(context, null,
+                Uri.fromFile(new File(context.getCacheDir(), "alloc_test.png")), ImageView.ScaleType.FIT_XY, info);
+        drawable.frameDecode.setComposeMode(composeMode);
+        drawable.frameDecode.prepare(null, info, frameSource);
+        ApngFrameDecode frameDecode = drawable.frameDecode;
+
+        // 预热: 填满复用池和缓存
+        for (int i = 0; i < WARM_UP_LOOPS * FRAME_COUNT; i++) {
+            assertNotNull(frameDecode.createFrameBitmap(i % FRAME_COUNT));
+        }
+
+        int allocationsBefore = drawable.bitmapCache.getAllocationCount();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            frameDecode.createFrameBitmap(i % FRAME_COUNT);
+        }
+        int objectCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertTrue("bitmaps allocated after warm-up: " + (drawable.bitmapCache.getAllocationCount() - allocationsBefore),
+                drawable.bitmapCache.getAllocationCount() == allocationsBefore);
+        assertTrue(composeMode + " objects allocated in " + MEASURED_FRAMES + " frames: " + objectCount,
+                objectCount <= MAX_STEADY_ALLOCATIONS);
+        drawable.bitmapCache.clear();
+        frameSource.release();
+    }
+
+    // 生成一个子区域逐帧移动的动画, 覆盖所有的dispose和blend方式, 返回每帧的png数据
+    private byte[][] createAnimation(ApngInfo info) {
+        info.setImageSize(WIDTH, HEIGHT);
+        byte[][] frames = new byte[FRAME_COUNT][];
+        byte[] disposeOps = {PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND,
+                PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS};
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            boolean fullFrame = i == 0;
+            int frameWidth = fullFrame ? WIDTH : WIDTH / 2;
+            int frameHeight = fullFrame ? HEIGHT : HEIGHT / 2;
+
+            PngChunkFCTL fctl = new PngChunkFCTL(new ImageInfo(WIDTH, HEIGHT, 8, true));
+            fctl.setWidth(frameWidth);
+            fctl.setHeight(frameHeight);
+            fctl.setxOff(fullFrame ? 0 : (i * 4) % (WIDTH - frameWidth));
+            fctl.setyOff(fullFrame ? 0 : (i * 8) % (HEIGHT - frameHeight));
+            fctl.setDelayNum(1);
+            fctl.setDelayDen(30);
+            fctl.setDisposeOp(fullFrame ? PngChunkFCTL.APNG_DISPOSE_OP_NONE : disposeOps[i % disposeOps.length]);
+            fctl.setBlendOp(i % 2 == 0 ? PngChunkFCTL.APNG_BLEND_OP_SOURCE : PngChunkFCTL.APNG_BLEND_OP_OVER);
+            info.addFrame(fctl);
+
+            Bitmap frame = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
+            frame.eraseColor(Color.argb(128 + i * 8, i * 30, 255 - i * 30, 100));
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            frame.compress(Bitmap.CompressFormat.PNG, 100, data);
+            frames[i] = data.toByteArray();
+            frame.recycle();
+        }
+        info.numFrames = FRAME_COUNT;
+        info.playCount = 0;
+        return frames;
+    }
+
+    // 所有帧放在一块内存中(MEMORY模式)
+    private ApngFrameSource createMemorySource(byte[][] frames) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[FRAME_COUNT];
+        int[] lengths = new int[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            offsets[i] = data.size();
+            data.write(frames[i], 0, frames[i].length);
+            lengths[i] = frames[i].length;
+        }
+        return new ApngMemoryFrameSource(data.toByteArray(), offsets, lengths, FRAME_COUNT);
+    }
+
+    // 每帧一个文件(FILES模式), 第0帧的文件代替apng源文件
+    private ApngFrameSource createFileSource(byte[][] frames, ApngInfo info) throws IOException {
+        baseFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "alloc_test_files.png");
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            FileOutputStream out = new FileOutputStream(getFrameFile(i));
+            try {
+                out.write(frames[i]);
+            } finally {
+                out.close();
+            }
+        }
+        ApngFrameSource frameSource = ApngFileFrameSource.open(baseFile, FRAME_COUNT, info);
+        assertNotNull(frameSource);
+        return frameSource;
+    }
+
+    private File getFrameFile(int frameIndex) {
+        return frameIndex == 0 ? baseFile
+                : new File(baseFile.getParent(), ApngExtractFrames.getFileName(baseFile, frameIndex));
+    }
+}
@@ -1,12 +1,10 @@
 package com.foretree.apng;
 
 import android.graphics.Bitmap;
-import android.util.Log;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Set;
 
 /**
@@ -14,23 +12,125 @@ import java.util.Set;
  *
  * 专属于apng解码使用的Bitmap缓存, 极度的内存控制。缓存池＋复用池一般在4帧左右
  *
- * 1. 有效控制缓存大小. 只存储解码所需的缓存帧(在apng解包时根据op类型, 可以计算出解码过程中最多需要的缓存数),
- * 理论上最少缓存帧数为1帧, 一般2-3帧就可以了
+ * 1. 有效控制缓存大小. 只存储解码所需的缓存帧, 合成只依赖上一帧(dispose_op为PREVIOUS时解码器只保存一块区域),
+ * 所以除全缓存外只缓存1帧
  * 2. 复用Bitmap. 所有使用Bitmap的地方均从bitmap复用池中获取, 不再需要的Bitmap也都放入复用池中。
- * 从目前的测试结果来看, 复用池的大小一般在1-2之间变化
+ * 复用池为所有apng共享的{@link ApngBitmapPool}, 播放结束后缓存中的帧也会归还到复用池, 供其他apng使用
+ * 3. 小动画全缓存. 所有帧合成后的总大小不超过{@link #FULL_CACHE_MAX_BYTES}时, 第一轮播放后保留所有合成好的帧,
+ * 之后的循环直接使用缓存, 不再解码
  */
 public class ApngBitmapCache {
 
-    private final static String TAG = ApngDrawable.TAG + "_cache";
+    /**
+     * 所有帧都缓存时允许占用的最大内存, 为0时不使用全缓存
+     */
+    public static int FULL_CACHE_MAX_BYTES = 512 * 1024;
 
     private int maxCacheSize = 2;
-    private Map<Integer, Bitmap> bitmapCache = new HashMap<>();
-    private Set<Bitmap> bitmapReuse = new HashSet<>();
+    private boolean fullCache = false; // 是否缓存所有帧
+    private Bitmap.Config canvasConfig = Bitmap.Config.ARGB_8888; // 合成后的帧使用的格式, 完全不透明的动画为RGB_565
+    // 按帧序号存放缓存的帧, cachedIndexes记录当前缓存了哪些帧, 避免遍历整个数组和装箱
+    private Bitmap[] bitmapCache = new Bitmap[0];
+    private int[] cachedIndexes = new int[0];
+    private int cachedCount = 0;
+    // bitmap -> 在bitmapCache中出现的次数, 用于O(1)判断bitmap是否还在缓存中
+    private IdentityHashMap<Bitmap, Integer> cacheOwners = new IdentityHashMap<>();
+    // 正在显示或者等待显示的帧, 不允许复用
+    private Set<Bitmap> pinnedBitmaps = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+    // 解码器长期持有反复写入的bitmap, 不进入复用池
+    private Set<Bitmap> retainedBitmaps = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
 
-    // 当apng播放结束后, 清空缓存
+    // 复用统计
+    private int reuseHitCount = 0;
+    private int reuseMissCount = 0;
+    private int allocationCount = 0;
+
+    // 当apng播放结束后, 清空缓存, 缓存的帧归还到共享的复用池(正在显示的帧除外)
     public void clear() {
-        bitmapCache.clear();
-        bitmapReuse.clear();
+        ApngBitmapPool bitmapPool = ApngBitmapPool.getInstance();
+        for (Bitmap bitmap : cacheOwners.keySet()) {
+            if (!pinnedBitmaps.contains(bitmap)) {
+                bitmapPool.put(bitmap);
+            }
+        }
+        for (Bitmap bitmap : retainedBitmaps) {
+            if (!pinnedBitmaps.contains(bitmap) && !cacheOwners.containsKey(bitmap)) {
+                bitmapPool.put(bitmap);
+            }
+        }
+        clearCache();
+        pinnedBitmaps.clear();
+        retainedBitmaps.clear();
+    }
+
+    private void clearCache() {
+        for (int i = 0; i < cachedCount; i++) {
+            bitmapCache[cachedIndexes[i]] = null;
+        }
+        cachedCount = 0;
+        cacheOwners.clear();
+    }
+
+    // 按帧数分配缓存数组, 帧数一般在拆帧时就已知道, 只有越界时才会扩容
+    private void ensureCapacity(int frameCount) {
+        if (bitmapCache.length >= frameCount) return;
+        bitmapCache = Arrays.copyOf(bitmapCache, frameCount);
+        cachedIndexes = Arrays.copyOf(cachedIndexes, frameCount);
+    }
+
+    // 标记正在显示或者等待显示的帧, 在取消标记之前即使移出缓存也不会进入复用池
+    void pinBitmap(Bitmap bitmap) {
+        if (bitmap != null) {
+            pinnedBitmaps.add(bitmap);
+        }
+    }
+
+    void unpinBitmap(Bitmap bitmap) {
+        pinnedBitmaps.remove(bitmap);
+    }
+
+    boolean isPinned(Bitmap bitmap) {
+        return pinnedBitmaps.contains(bitmap);
+    }
+
+    // 标记解码器长期持有的bitmap, 不再显示时也不会进入复用池, 直到clear时归还
+    void retainBitmap(Bitmap bitmap) {
+        if (bitmap != null) {
+            retainedBitmaps.add(bitmap);
+        }
+    }
+
+    // 解码器不再持有时归还到复用池
+    void releaseRetainedBitmap(Bitmap bitmap) {
+        if (retainedBitmaps.remove(bitmap)) {
+            reuseBitmap(bitmap);
+        }
+    }
+
+    // clear之后之前持有的bitmap都已经归还, 解码器需要重新获取
+    boolean isRetained(Bitmap bitmap) {
+        return retainedBitmaps.contains(bitmap);
+    }
+
+    /**
+     * @return 从复用池中取到bitmap的次数
+     */
+    public int getReuseHitCount() {
+        return reuseHitCount;
+    }
+
+    /**
+     * @return 复用池中没有合适的bitmap的次数
+     */
+    public int getReuseMissCount() {
+        return reuseMissCount;
+    }
+
+    /**
+     * @return 新创建bitmap的次数
+     */
+    public int getAllocationCount() {
+        return allocationCount;
     }
 
     // 设置最大的缓存池大小, 动态计算缓存池的大小, 以便刚好满足当前apng解码需要的使用
@@ -42,68 +142,135 @@ public class ApngBitmapCache {
         return maxCacheSize;
     }
 
+    /**
+     * 设置合成后的帧(画布)使用的格式, 需要在{@link #setAnimationSize(int, int, int)}之前调用
+     */
+    void setCanvasConfig(Bitmap.Config config) {
+        canvasConfig = config;
+    }
+
+    Bitmap.Config getCanvasConfig() {
+        return canvasConfig;
+    }
+
+    /**
+     * 根据动画的大小决定是否缓存所有帧, 需要在{@link #setMaxCacheSize(int)}之后调用
+     *
+     * @param frameCount 帧数
+     * @param width      动画的宽
+     * @param height     动画的高
+     */
+    void setAnimationSize(int frameCount, int width, int height) {
+        ensureCapacity(frameCount);
+        long totalBytes = (long) frameCount * width * height * ApngBitmapPool.bytesPerPixel(canvasConfig);
+        fullCache = frameCount > 0 && totalBytes <= FULL_CACHE_MAX_BYTES;
+        if (fullCache) {
+            maxCacheSize = Math.max(maxCacheSize, frameCount);
+        }
+    }
+
+    /**
+     * @return 是否缓存了所有帧, 此时缓存中已有的帧可以直接使用, 不需要重新解码
+     */
+    boolean isFullCache() {
+        return fullCache;
+    }
+
+    // 缓存中是否有对应帧
+    boolean hasCacheBitmap(int frameIndex) {
+        return frameIndex >= 0 && frameIndex < bitmapCache.length && bitmapCache[frameIndex] != null;
+    }
+
     // 缓存图片帧
     void cacheBitmap(int frameIndex, Bitmap bitmap) {
-        if (bitmap == null) return;
-        if (frameIndex == 0) {
-            bitmapCache.clear();
-        } else if (bitmapCache.size() >= maxCacheSize) {
-            Iterator<Integer> indexIter = bitmapCache.keySet().iterator();
-            while (indexIter.hasNext()) {
-                int cacheIndex = indexIter.next();
+        if (bitmap == null || frameIndex < 0) return;
+        ensureCapacity(frameIndex + 1);
+        if (fullCache) {
+            // 全缓存时所有帧都保留, 不需要淘汰
+        } else if (frameIndex == 0) {
+            clearCache();
+        } else if (cachedCount >= maxCacheSize) {
+            int i = 0;
+            while (i < cachedCount) {
+                int cacheIndex = cachedIndexes[i];
                 if (cacheIndex > frameIndex || frameIndex>=(cacheIndex+maxCacheSize)) {
-                    Bitmap overCacheBitmap = bitmapCache.get(cacheIndex);
-                    indexIter.remove();
+                    Bitmap overCacheBitmap = bitmapCache[cacheIndex];
+                    bitmapCache[cacheIndex] = null;
+                    cachedIndexes[i] = cachedIndexes[--cachedCount];
+                    removeOwner(overCacheBitmap);
                     reuseBitmap(overCacheBitmap);
+                } else {
+                    i++;
                 }
             }
         }
-        bitmapCache.put(frameIndex, bitmap);
+        Bitmap replaced = bitmapCache[frameIndex];
+        bitmapCache[frameIndex] = bitmap;
+        addOwner(bitmap);
+        if (replaced == null) {
+            cachedIndexes[cachedCount++] = frameIndex;
+        } else {
+            removeOwner(replaced);
+            reuseBitmap(replaced);
+        }
+    }
+
+    private void addOwner(Bitmap bitmap) {
+        Integer count = cacheOwners.get(bitmap);
+        cacheOwners.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private void removeOwner(Bitmap bitmap) {
+        Integer count = cacheOwners.get(bitmap);
+        if (count == null) return;
+        if (count <= 1) {
+            cacheOwners.remove(bitmap);
+        } else {
+            cacheOwners.put(bitmap, count - 1);
+        }
     }
 
     // 从缓存中获取对应帧
     Bitmap getCacheBitmap(int frameIndex) {
-        Bitmap cacheBitmap = bitmapCache.get(frameIndex);
-        if (cacheBitmap == null) {
-            Log.v(TAG, "can't get cache for frame " + frameIndex);
-        }
-        return cacheBitmap;
+        // 每帧都会调用, 没有缓存是正常情况, 不打日志避免拼接字符串
+        return frameIndex >= 0 && frameIndex < bitmapCache.length ? bitmapCache[frameIndex] : null;
     }
 
     // 缓存中是否保存此Bitmap, 一般在复用Bitmap时进行判断, 如果Bitmap仍存在缓存中时不允许复用
     boolean cacheContain(Bitmap bitmap) {
-        return bitmapCache.containsValue(bitmap);
+        return cacheOwners.containsKey(bitmap);
     }
 
     // 把bitmap放入复用池中
     void reuseBitmap(Bitmap bitmap) {
-        if (bitmap != null && !cacheContain(bitmap)) {
-            bitmapReuse.add(bitmap);
+        if (bitmap != null && !pinnedBitmaps.contains(bitmap) && !retainedBitmaps.contains(bitmap)
+                && !cacheContain(bitmap)) {
+            ApngBitmapPool.getInstance().put(bitmap);
         }
     }
 
-    // 从复用池中取一个bitmap
+    // 从复用池中取一个bitmap, 用来解码单独的帧
     Bitmap getReuseBitmap(int width, int height) {
-        Bitmap bitmap = null;
-        Iterator<Bitmap> iter = bitmapReuse.iterator();
-        while (iter.hasNext()) {
-            int reuseSize = width*height*4;
-            bitmap = iter.next();
-            //bitmap = bitmapReuse.remove(0);
-            if (bitmap != null && bitmap.getAllocationByteCount() >= reuseSize) {
-                iter.remove();
-                if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
-                    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
-                }
-                bitmap.eraseColor(0);
-                return bitmap;
-            }
+        return getReuseBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    // 从复用池中取一个画布格式的bitmap, 用来存放合成后的帧
+    Bitmap getCanvasBitmap(int width, int height) {
+        return getReuseBitmap(width, height, canvasConfig);
+    }
+
+    private Bitmap getReuseBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = ApngBitmapPool.getInstance().get(width, height, config);
+        if (bitmap != null) {
+            reuseHitCount++;
+            return bitmap;
         }
+        reuseMissCount++;
 
         // 没有可用的, 则创建新的
         try {
-            Bitmap.Config config = Bitmap.Config.ARGB_8888;
             bitmap = Bitmap.createBitmap(width, height, config);
+            allocationCount++;
         } catch (OutOfMemoryError e) {
             e.printStackTrace();
         }
@@ -0,0 +1,266 @@
+package com.foretree.apng;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * 所有{@link ApngDrawable}共享的Bitmap复用池
+ * <p>
+ * 按照bitmap占用的内存大小分组, 取用时先找大小刚好相同的一组, 没有时再找能容纳所需大小的最小一组;
+ * 总大小超过上限时按照放入的先后顺序淘汰最久没用的bitmap. 分组和链表节点都会复用, 预热之后放入和取出不再分配对象.
+ * 列表滑动时drawable停止播放后归还的bitmap可以直接给新的drawable使用, 避免反复创建和回收大图
+ * <p>
+ * 实现了{@link ComponentCallbacks2}, 注册到Application后在系统内存紧张时自动收缩
+ */
+public class ApngBitmapPool implements ComponentCallbacks2 {
+
+    /**
+     * 复用池的默认最大字节数
+     */
+    public static int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // 取用时允许的最大浪费倍数, 避免小图占用大bitmap
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private static volatile ApngBitmapPool mInstance;
+
+    // 按大小排序的分组, 用int比较避免装箱; 组变空后保留, 下次归还同样大小的bitmap时不需要重新创建
+    private Bucket[] buckets = new Bucket[4];
+    private int bucketCount = 0;
+    // 按放入顺序串起所有bitmap, 最前面的最久没用
+    private Entry lruHead;
+    private Entry lruTail;
+    // 取出后回收的节点, 稳定播放时放入和取出都不分配对象
+    private Entry freeEntries;
+    private int maxBytes;
+    private int currentBytes = 0;
+
+    private ApngBitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static ApngBitmapPool getInstance() {
+        if (mInstance == null) {
+            synchronized (ApngBitmapPool.class) {
+                if (mInstance == null) {
+                    mInstance = new ApngBitmapPool(DEFAULT_MAX_BYTES);
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /**
+     * 设置复用池的最大字节数, 超出部分立即释放
+     */
+    public synchronized void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * 归还bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) return;
+        int index = findBucket(size);
+        Bucket bucket;
+        if (index >= 0) {
+            bucket = buckets[index];
+            // 同样大小的bitmap只在这一组中, 组一般很小
+            for (Entry entry = bucket.head; entry != null; entry = entry.bucketNext) {
+                if (entry.bitmap == bitmap) return;
+            }
+        } else {
+            bucket = insertBucket(-index - 1, size);
+        }
+        Entry entry = freeEntries;
+        if (entry != null) {
+            freeEntries = entry.bucketNext;
+            entry.bucketNext = null;
+        } else {
+            entry = new Entry();
+        }
+        entry.bitmap = bitmap;
+        entry.bucket = bucket;
+        // 放到组的末尾和全局顺序的末尾
+        entry.bucketPrev = bucket.tail;
+        if (bucket.tail != null) bucket.tail.bucketNext = entry;
+        else bucket.head = entry;
+        bucket.tail = entry;
+        entry.lruPrev = lruTail;
+        if (lruTail != null) lruTail.lruNext = entry;
+        else lruHead = entry;
+        lruTail = entry;
+        currentBytes += size;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * 取一个可以容纳指定大小的bitmap, 已经调整为对应的宽高和格式并清空, 没有时返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int requiredSize = width * height * bytesPerPixel(config);
+        while (true) {
+            // 同一个apng反复取用的大小都相同, 一般都能直接命中; 否则找能容纳所需大小的最小一组
+            int index = findBucket(requiredSize);
+            if (index < 0) index = -index - 1;
+            Entry entry = null;
+            for (; index < bucketCount; index++) {
+                Bucket bucket = buckets[index];
+                if (bucket.size > (long) requiredSize * MAX_SIZE_MULTIPLE) {
+                    return null;
+                }
+                if (bucket.tail != null) {
+                    entry = bucket.tail;
+                    break;
+                }
+            }
+            if (entry == null) {
+                return null;
+            }
+            // 取组中最新放入的
+            Bitmap bitmap = take(entry);
+            if (bitmap.isRecycled()) {
+                continue;
+            }
+            if (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config) {
+                bitmap.reconfigure(width, height, config);
+            }
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+    }
+
+    // 二分查找大小对应的组, 没有时返回-(插入位置)-1
+    private int findBucket(int size) {
+        int low = 0;
+        int high = bucketCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midSize = buckets[mid].size;
+            if (midSize < size) {
+                low = mid + 1;
+            } else if (midSize > size) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+
+    private Bucket insertBucket(int index, int size) {
+        if (bucketCount == buckets.length) {
+            buckets = Arrays.copyOf(buckets, bucketCount * 2);
+        }
+        System.arraycopy(buckets, index, buckets, index + 1, bucketCount - index);
+        Bucket bucket = new Bucket(size);
+        buckets[index] = bucket;
+        bucketCount++;
+        return bucket;
+    }
+
+    // 从所在组和全局顺序中取出, 节点回收再用
+    private Bitmap take(Entry entry) {
+        Bucket bucket = entry.bucket;
+        if (entry.bucketPrev != null) entry.bucketPrev.bucketNext = entry.bucketNext;
+        else bucket.head = entry.bucketNext;
+        if (entry.bucketNext != null) entry.bucketNext.bucketPrev = entry.bucketPrev;
+        else bucket.tail = entry.bucketPrev;
+        if (entry.lruPrev != null) entry.lruPrev.lruNext = entry.lruNext;
+        else lruHead = entry.lruNext;
+        if (entry.lruNext != null) entry.lruNext.lruPrev = entry.lruPrev;
+        else lruTail = entry.lruPrev;
+        currentBytes -= bucket.size;
+
+        Bitmap bitmap = entry.bitmap;
+        entry.bitmap = null;
+        entry.bucket = null;
+        entry.bucketPrev = null;
+        entry.lruPrev = null;
+        entry.lruNext = null;
+        entry.bucketNext = freeEntries;
+        freeEntries = entry;
+        return bitmap;
+    }
+
+    /**
+     * 释放所有bitmap
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+        // 同时丢弃保留的空组和回收的节点
+        buckets = new Bucket[4];
+        bucketCount = 0;
+        freeEntries = null;
+    }
+
+    // 淘汰最久没用的bitmap, 直到总大小不超过指定值
+    private void trimToSize(int size) {
+        while (currentBytes > size && lruHead != null) {
+            take(lruHead);
+        }
+    }
+
+    // 大小相同的一组bitmap, 按放入顺序排列
+    private static final class Bucket {
+        final int size;
+        Entry head; // 最旧
+        Entry tail; // 最新
+
+        Bucket(int size) {
+            this.size = size;
+        }
+    }
+
+    // 池中的一个bitmap, 同时在所属组和全局顺序两个链表中
+    private static final class Entry {
+        Bitmap bitmap;
+        Bucket bucket;
+        Entry bucketPrev;
+        Entry bucketNext; // 回收后用来串起空闲节点
+        Entry lruPrev;
+        Entry lruNext;
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) return 2;
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        return 4;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // 应用在后台并且可能很快被杀死, 全部释放
+            clear();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            synchronized (this) {
+                trimToSize(maxBytes / 2);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
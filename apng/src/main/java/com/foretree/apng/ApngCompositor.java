@@ -0,0 +1,216 @@
+package com.foretree.apng;
+
+import java.util.Arrays;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+/**
+ * 在int[]像素数组上合成apng帧, 不依赖Android, 可以直接在JVM上测试
+ * <p>
+ * 整个动画只有一块常驻的画布(非预乘的ARGB, 与{@link android.graphics.Bitmap#getPixels}/setPixels的格式一致),
+ * 每帧只处理fcTL指定的区域:
+ * 1. 先按上一帧的dispose_op处理上一帧的区域: BACKGROUND清成透明, PREVIOUS把保存的区域拷回去
+ * 2. 当前帧的dispose_op为PREVIOUS时, 先保存当前帧即将覆盖的区域
+ * 3. 按blend_op把当前帧的像素合成到它的区域: SOURCE直接覆盖, OVER按alpha叠加
+ * <p>
+ * 帧必须按顺序合成, 每轮循环从{@link #reset()}开始
+ * <p>
+ * 每次合成后可以取得这一帧改动过的区域(上一帧dispose的区域与当前帧区域的并集), 只需要把这块区域同步到输出
+ */
+class ApngCompositor {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    // 上一帧的区域和dispose_op, 在合成下一帧之前处理
+    private int disposeX;
+    private int disposeY;
+    private int disposeWidth;
+    private int disposeHeight;
+    private byte disposeOp = PngChunkFCTL.APNG_DISPOSE_OP_NONE;
+
+    // dispose_op为PREVIOUS时保存的区域, 大小按最大的帧区域增长
+    private int[] savedRegion = new int[0];
+
+    private boolean firstFrame = true;
+
+    // 最近一次合成改动过的区域, reset之后为整个画布
+    private int dirtyLeft;
+    private int dirtyTop;
+    private int dirtyRight;
+    private int dirtyBottom;
+
+    ApngCompositor(int width, int height) {
+        this.width = width;
+        this.height = height;
+        pixels = new int[width * height];
+        dirtyRight = width;
+        dirtyBottom = height;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 画布的像素, 每行width个
+     */
+    int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * 开始新的一轮, 画布清成透明
+     */
+    void reset() {
+        Arrays.fill(pixels, 0);
+        disposeOp = PngChunkFCTL.APNG_DISPOSE_OP_NONE;
+        firstFrame = true;
+        dirtyLeft = 0;
+        dirtyTop = 0;
+        dirtyRight = width;
+        dirtyBottom = height;
+    }
+
+    int getDirtyLeft() {
+        return dirtyLeft;
+    }
+
+    int getDirtyTop() {
+        return dirtyTop;
+    }
+
+    int getDirtyRight() {
+        return dirtyRight;
+    }
+
+    int getDirtyBottom() {
+        return dirtyBottom;
+    }
+
+    /**
+     * 合成一帧
+     *
+     * @param frame       帧像素, 非预乘的ARGB
+     * @param frameOffset 帧像素在数组中的起始位置
+     * @param frameStride 帧像素每行的长度
+     * @param x           fcTL中的x_offset
+     * @param y           fcTL中的y_offset
+     * @param frameWidth  帧的宽
+     * @param frameHeight 帧的高
+     * @param dispose     fcTL中的dispose_op
+     * @param blend       fcTL中的blend_op
+     */
+    void compose(int[] frame, int frameOffset, int frameStride, int x, int y, int frameWidth, int frameHeight,
+                 byte dispose, byte blend) {
+        if (!firstFrame) {
+            // reset之后的第一帧仍然报告整个画布
+            dirtyLeft = dirtyTop = dirtyRight = dirtyBottom = 0;
+        }
+        applyDispose();
+
+        // 超出画布的部分忽略
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + frameWidth, width);
+        int bottom = Math.min(y + frameHeight, height);
+        int regionWidth = Math.max(right - left, 0);
+        int regionHeight = Math.max(bottom - top, 0);
+        frameOffset += (top - y) * frameStride + (left - x);
+
+        // 第一帧的PREVIOUS按规范当作BACKGROUND处理
+        if (dispose == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS && firstFrame) {
+            dispose = PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND;
+        }
+        if (dispose == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) {
+            saveRegion(left, top, regionWidth, regionHeight);
+        }
+
+        if (blend == PngChunkFCTL.APNG_BLEND_OP_SOURCE) {
+            for (int row = 0; row < regionHeight; row++) {
+                System.arraycopy(frame, frameOffset + row * frameStride, pixels, (top + row) * width + left, regionWidth);
+            }
+        } else {
+            for (int row = 0; row < regionHeight; row++) {
+                int src = frameOffset + row * frameStride;
+                int dst = (top + row) * width + left;
+                for (int col = 0; col < regionWidth; col++) {
+                    pixels[dst + col] = blendOver(frame[src + col], pixels[dst + col]);
+                }
+            }
+        }
+
+        addDirty(left, top, right, bottom);
+        disposeX = left;
+        disposeY = top;
+        disposeWidth = regionWidth;
+        disposeHeight = regionHeight;
+        disposeOp = dispose;
+        firstFrame = false;
+    }
+
+    // 按上一帧的dispose_op处理上一帧的区域
+    private void applyDispose() {
+        if (disposeOp != PngChunkFCTL.APNG_DISPOSE_OP_NONE) {
+            addDirty(disposeX, disposeY, disposeX + disposeWidth, disposeY + disposeHeight);
+        }
+        if (disposeOp == PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND) {
+            for (int row = 0; row < disposeHeight; row++) {
+                int start = (disposeY + row) * width + disposeX;
+                Arrays.fill(pixels, start, start + disposeWidth, 0);
+            }
+        } else if (disposeOp == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) {
+            for (int row = 0; row < disposeHeight; row++) {
+                System.arraycopy(savedRegion, row * disposeWidth, pixels, (disposeY + row) * width + disposeX, disposeWidth);
+            }
+        }
+        disposeOp = PngChunkFCTL.APNG_DISPOSE_OP_NONE;
+    }
+
+    private void addDirty(int left, int top, int right, int bottom) {
+        if (right <= left || bottom <= top) return;
+        if (dirtyRight <= dirtyLeft || dirtyBottom <= dirtyTop) {
+            dirtyLeft = left;
+            dirtyTop = top;
+            dirtyRight = right;
+            dirtyBottom = bottom;
+        } else {
+            dirtyLeft = Math.min(dirtyLeft, left);
+            dirtyTop = Math.min(dirtyTop, top);
+            dirtyRight = Math.max(dirtyRight, right);
+            dirtyBottom = Math.max(dirtyBottom, bottom);
+        }
+    }
+
+    private void saveRegion(int left, int top, int regionWidth, int regionHeight) {
+        int size = regionWidth * regionHeight;
+        if (savedRegion.length < size) {
+            savedRegion = new int[size];
+        }
+        for (int row = 0; row < regionHeight; row++) {
+            System.arraycopy(pixels, (top + row) * width + left, savedRegion, row * regionWidth, regionWidth);
+        }
+    }
+
+    // 非预乘ARGB的source-over
+    static int blendOver(int src, int dst) {
+        int srcAlpha = src >>> 24;
+        if (srcAlpha == 0xFF) return src;
+        if (srcAlpha == 0) return dst;
+        int dstAlpha = dst >>> 24;
+        if (dstAlpha == 0) return src;
+
+        // 目标颜色乘上剩余的透明度
+        int dstWeight = dstAlpha * (0xFF - srcAlpha) / 0xFF;
+        int outAlpha = srcAlpha + dstWeight;
+        int r = (((src >> 16) & 0xFF) * srcAlpha + ((dst >> 16) & 0xFF) * dstWeight) / outAlpha;
+        int g = (((src >> 8) & 0xFF) * srcAlpha + ((dst >> 8) & 0xFF) * dstWeight) / outAlpha;
+        int b = ((src & 0xFF) * srcAlpha + (dst & 0xFF) * dstWeight) / outAlpha;
+        return (outAlpha << 24) | (r << 16) | (g << 8) | b;
+    }
+}
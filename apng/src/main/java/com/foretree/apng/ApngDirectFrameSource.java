@@ -0,0 +1,188 @@
+package com.foretree.apng;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+
+/**
+ * 不拆帧的帧数据来源, 播放时按{@link ApngInfo}记录的位置直接从apng文件中读取并解码每帧的数据,
+ * 见{@link ApngPixelDecoder}
+ * <p>
+ * 帧的大小直接使用fcTL中的宽高, 不需要先读取图片头; apng文件在播放期间保持打开
+ * <p>
+ * 边下载边播放时(见{@link ApngStreamLoader}), 文件和info都还在增长, 只有前{@link #getFrameCount()}帧可以解码,
+ * 下载线程先写完帧的信息再更新可解码的帧数, 解码线程先读帧数再读帧的信息, 由volatile保证可见性;
+ * info扩容时替换的数组也是volatile字段, 见{@link ApngInfo}
+ */
+public class ApngDirectFrameSource implements ApngFrameSource {
+
+    private File file;
+    private final ApngInfo info;
+    private final ApngPixelDecoder decoder;
+    private RandomAccessFile input;
+    private int[] pixels = new int[0]; // 解码成bitmap时使用的像素buffer
+    private boolean released = false;
+    private int sampleSize = 1;
+    private volatile int availableFrames; // 数据已经完整的帧数
+    private volatile boolean loading;     // 文件是否还在下载
+    // 等待下载的播放注册的回调, 有新的帧或者下载结束时执行一次
+    private final AtomicReference<Runnable> framesListener = new AtomicReference<>();
+
+    ApngDirectFrameSource(File file, ApngInfo info) {
+        this(file, info, false);
+    }
+
+    /**
+     * @param loading 文件是否还在下载, 为true时开始没有可以解码的帧
+     */
+    ApngDirectFrameSource(File file, ApngInfo info, boolean loading) {
+        this.file = file;
+        this.info = info;
+        this.loading = loading;
+        availableFrames = loading ? 0 : info.frameCount;
+        decoder = new ApngPixelDecoder(info);
+        if (loading) {
+            // 下载中的临时文件会被重命名或者删除, 先打开
+            try {
+                openInput();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 下载线程中调用, 前count帧的数据已经写入文件
+     */
+    void setAvailableFrames(int count) {
+        if (count > availableFrames) {
+            availableFrames = count;
+            notifyFramesListener();
+        }
+    }
+
+    /**
+     * 边下载边播放时, 播放停在还没有下载完的帧上时调用, 有新的帧可以解码或者下载结束时在下载线程中执行一次listener.
+     * 注册之后需要再检查一次帧数, 注册之前到达的帧不会再通知
+     */
+    void setFramesListener(Runnable listener) {
+        framesListener.set(listener);
+    }
+
+    private void notifyFramesListener() {
+        Runnable listener = framesListener.getAndSet(null);
+        if (listener != null) listener.run();
+    }
+
+    /**
+     * 下载结束, 之后可以解码的帧数不再变化
+     *
+     * @param dest 下载完成后文件的位置, 已经打开的文件在重命名后仍然可以读取, 之后重新打开时使用新的位置;
+     *             为null时表示下载失败, 只能播放已经下载的帧
+     */
+    synchronized void finishLoading(File dest) {
+        if (dest != null) file = dest;
+        loading = false;
+        notifyFramesListener();
+    }
+
+    /**
+     * @return 文件是否还在下载
+     */
+    boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * @return 是否可以直接解码这个apng的帧数据
+     */
+    static boolean isSupported(ApngInfo info) {
+        return ApngPixelDecoder.isSupported(info.getColorType(), info.getBitDepth(), info.isInterlaced());
+    }
+
+    /**
+     * 把一帧解码成像素, 大小为fcTL中的宽高按{@link #setSampleSize(int)}缩小后的宽高
+     *
+     * @return 是否解码成功
+     */
+    public synchronized boolean decodePixels(int frameIndex, int[] out, int offset, int stride) {
+        if (released || frameIndex < 0 || frameIndex >= availableFrames) return false;
+        try {
+            openInput();
+            return decoder.decode(input, frameIndex, out, offset, stride, sampleSize);
+        } catch (IOException | DataFormatException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private synchronized void openInput() throws IOException {
+        if (input == null) {
+            input = new RandomAccessFile(file, "r");
+        }
+    }
+
+    @Override
+    public synchronized Bitmap decodeFrame(int frameIndex, Bitmap reuseBitmap) {
+        if (released || frameIndex < 0 || frameIndex >= availableFrames) return null;
+        int width = ApngImageUtils.getSampledSize(info.getFrameWidth(frameIndex), sampleSize);
+        int height = ApngImageUtils.getSampledSize(info.getFrameHeight(frameIndex), sampleSize);
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        if (!decodePixels(frameIndex, pixels, 0, width)) return null;
+
+        Bitmap bitmap = null;
+        if (reuseBitmap != null && !reuseBitmap.isRecycled() && reuseBitmap.isMutable()
+                && reuseBitmap.getAllocationByteCount() >= width * height * 4) {
+            if (reuseBitmap.getWidth() != width || reuseBitmap.getHeight() != height
+                    || reuseBitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                reuseBitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            }
+            bitmap = reuseBitmap;
+        } else {
+            try {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    @Override
+    public synchronized void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(sampleSize, 1);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return availableFrames;
+    }
+
+    // 边下载边播放时由下载线程检查, 所有帧数据来源都释放后不再需要继续下载
+    synchronized boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public synchronized void release() {
+        released = true;
+        framesListener.set(null);
+        decoder.release();
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            input = null;
+        }
+    }
+}
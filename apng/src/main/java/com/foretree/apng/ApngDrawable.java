@@ -7,6 +7,7 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
@@ -14,8 +15,7 @@ import android.net.Uri;
 import android.widget.ImageView;
 
 import java.io.File;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Arrays;
 
 import ar.com.hjg.pngj.PngReaderApng;
 
@@ -31,6 +31,8 @@ import ar.com.hjg.pngj.PngReaderApng;
 public class ApngDrawable extends Drawable implements Animatable {
     public static final String TAG = "ApngDrawable";
     private static final int INFINITE_LOOP = 0;     //循环播放
+    private static final long VSYNC_SLACK_MILLIS = 8; // 半个vsync周期内到时间的帧都可以在本次vsync显示
+    private static final int MAX_PENDING_FRAMES = 3;  // 按vsync刷新时最多保留的等待显示的帧数
     protected final Uri sourceUri;
     private Paint paint;
     protected String workingPath;
@@ -41,14 +43,35 @@ public class ApngDrawable extends Drawable implements Animatable {
     private RectF canvasRect;
     int baseWidth;
     int baseHeight;
+    // 显示区域的大小, 按显示大小缩小解码时使用(见ApngFrameDecode#setDownsample)
+    private volatile int targetWidth;
+    private volatile int targetHeight;
+    private volatile boolean opaque = false; // 动画是否完全不透明, 见ApngInfo#isOpaque
     protected int currentFrame;
     private int currentLoop;
 
-    ScheduledThreadPoolExecutor excutor = null;//new ScheduledThreadPoolExecutor(1, new ThreadPoolExecutor.DiscardPolicy());
+    ApngRenderScheduler.Token renderToken = null; // 当前播放在共享调度器中的凭证, 停止时取消
     ApngFrameDecode frameDecode;
     ApngBitmapCache bitmapCache;
     ApngInvalidationHandler invalidationHandler;
     Bitmap frameBp;
+    private Bitmap drawnBp; // 上一次绘制的帧, 只用来计算变化的区域
+    private final Rect changedRect = new Rect();
+    private final RectF dirtyRectF = new RectF();
+    private final Rect dirtyRect = new Rect();
+
+    // 按vsync刷新时使用, 以下字段受frameLock保护
+    private final Object frameLock = new Object();
+    private boolean vsyncAligned = false;
+    // 已经解码完成, 等待vsync时显示的帧和它们应该开始显示的时间, 按显示时间排序
+    private final Bitmap[] pendingFrames = new Bitmap[MAX_PENDING_FRAMES];
+    private final long[] pendingTimes = new long[MAX_PENDING_FRAMES];
+    private int pendingCount;
+    // 被替换或者跳过的帧, 由解码线程放回复用池; 两次提交之间最多为显示中的帧和所有等待的帧
+    private final Bitmap[] retiredFrames = new Bitmap[MAX_PENDING_FRAMES + 1];
+    private int retiredCount;
+    private final Bitmap[] releasingFrames = new Bitmap[MAX_PENDING_FRAMES + 1]; // 只在解码线程使用
+    boolean vsyncRequested = false; // 受ApngVsyncInvalidator保护
 
 
     /**
@@ -57,6 +80,16 @@ public class ApngDrawable extends Drawable implements Animatable {
      * @param scaleType // 支持FIT_XY(默认), CENTER_CROP, CENTER_INSIDE
      */
     public ApngDrawable(Context context, Bitmap bitmap, Uri uri, ImageView.ScaleType scaleType) {
+        this(context, bitmap, uri, scaleType, null);
+    }
+
+    /**
+     * @param bitmap
+     * @param uri
+     * @param scaleType // 支持FIT_XY(默认), CENTER_CROP, CENTER_INSIDE
+     * @param info      已经解析好的apng信息, 不为null时直接使用其中的宽高, 不再读取文件
+     */
+    ApngDrawable(Context context, Bitmap bitmap, Uri uri, ImageView.ScaleType scaleType, ApngInfo info) {
         super();
 
         // 解码器
@@ -80,11 +113,16 @@ public class ApngDrawable extends Drawable implements Animatable {
         // 图片的宽和高不通过bitmap来获取, 因为bitmap可能由于内存原因而修改sampleSize, 从而影响了图片的宽高
         //baseWidth = bitmap.getWidth();
         //baseHeight = bitmap.getHeight();
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(sourceUri.getPath(), options);
-        baseWidth = options.outWidth;
-        baseHeight = options.outHeight;
+        if (info != null) {
+            baseWidth = info.getWidth();
+            baseHeight = info.getHeight();
+        } else {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(sourceUri.getPath(), options);
+            baseWidth = options.outWidth;
+            baseHeight = options.outHeight;
+        }
 
         invalidationHandler = new ApngInvalidationHandler(this);
     }
@@ -102,12 +140,258 @@ public class ApngDrawable extends Drawable implements Animatable {
         frameDecode.playCount = numPlays;
     }
 
+    /**
+     * 开启后按照fcTL的延迟建立时间轴, 解码跟不上时丢弃迟到的帧(仍然会合成), 保持动画与真实时间同步;
+     * 关闭时(默认)每帧都会显示, 解码慢时动画整体变慢
+     *
+     * @param dropLateFrames 是否丢弃迟到的帧
+     */
+    public void setDropLateFrames(boolean dropLateFrames) {
+        frameDecode.renderTask.dropLateFrames = dropLateFrames;
+    }
+
+    /**
+     * 开启后所有apng的刷新按照屏幕的vsync合并, 每个显示帧只刷新一次, 并显示已经到时间的帧;
+     * 关闭时(默认)每解码出一帧就通知刷新一次
+     *
+     * @param vsyncAligned 是否按vsync刷新
+     */
+    public void setVsyncAligned(boolean vsyncAligned) {
+        synchronized (frameLock) {
+            this.vsyncAligned = vsyncAligned;
+        }
+    }
+
+    /**
+     * 设置预解码的帧数, 播放时会提前合成后面的几帧, 渲染时直接显示已经合成好的帧, 减少解码抖动造成的卡顿;
+     * 每多预解码一帧需要多占用一张完整大小的bitmap, 需要在start之前调用
+     *
+     * @param frames 预解码的帧数, 0表示不预解码(默认)
+     */
+    public void setDecodeAhead(int frames) {
+        frameDecode.renderTask.setDecodeAhead(frames);
+    }
+
+    /**
+     * 跳到指定的帧, 从这一帧之前最近的关键帧开始合成(见{@link ApngInfo#getKeyFrame(int)}), 不需要从第0帧合成;
+     * 播放中时从这一帧继续播放, 没有播放时只显示这一帧
+     *
+     * @param frameIndex 帧序号, 超出范围时跳到最后一帧
+     */
+    public void seekTo(int frameIndex) {
+        seek(Math.max(frameIndex, 0), 0);
+    }
+
+    /**
+     * 跳到播放到timeMs时应该显示的帧, 超过一轮时按循环播放计算, 见{@link #seekTo(int)}
+     *
+     * @param timeMs 从第0帧开始的时间, 单位毫秒
+     */
+    public void seekToTime(long timeMs) {
+        seek(-1, timeMs);
+    }
+
+    // 在解码线程中跳转, frameIndex小于0时按timeMs计算要跳到的帧
+    private void seek(final int frameIndex, final long timeMs) {
+        if (renderToken != null) {
+            renderToken.cancel();
+        }
+        renderToken = ApngRenderScheduler.getInstance().newToken(this);
+        ApngRenderScheduler.getInstance().execute(renderToken, new Runnable() {
+            @Override
+            public void run() {
+                if (!frameDecode.isPrepared) {
+                    frameDecode.prepare();
+                }
+                if (!frameDecode.isPrepared) return;
+                boolean play = isRunning();
+                frameDecode.seekRenderFrame(frameIndex >= 0 ? frameIndex : frameDecode.getFrameAtTime(timeMs), play);
+                if (!play) {
+                    // 没有播放时publishFrame不会通知刷新
+                    invalidationHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            invalidateSelf();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
     public void decodePrepare() {
         if (!frameDecode.isPrepared) {
             frameDecode.prepare();
         }
     }
 
+    // 在共享的解码线程中延迟执行渲染任务, 停止播放后不再执行.
+    // 渲染任务中调度下一帧时沿用任务自己的凭证, 避免stop后马上start时旧的任务链混入新的播放
+    void scheduleRender(Runnable task, long delayMillis) {
+        ApngRenderScheduler.Token token = ApngRenderScheduler.currentToken();
+        if (token == null) token = renderToken;
+        if (token != null) {
+            ApngRenderScheduler.getInstance().schedule(token, task, delayMillis);
+        }
+    }
+
+    /**
+     * 解码线程中调用, 提交一帧新合成的图片
+     *
+     * @param bitmap      新的一帧
+     * @param presentTime 这一帧应该开始显示的时间
+     */
+    void publishFrame(Bitmap bitmap, long presentTime) {
+        boolean waitVsync;
+        int releaseCount = 0;
+        bitmapCache.pinBitmap(bitmap);
+        synchronized (frameLock) {
+            waitVsync = vsyncAligned;
+            if (waitVsync) {
+                if (pendingCount > 0 && presentTime < pendingTimes[pendingCount - 1]) {
+                    // 跳转或者重新开始后时间轴回退, 之前等待的帧不再显示
+                    while (pendingCount > 0) {
+                        retireFrame(pendingFrames[0]);
+                        removePendingFrames(1);
+                    }
+                } else if (pendingCount == MAX_PENDING_FRAMES) {
+                    // 主线程跟不上, 挤掉最早的帧
+                    retireFrame(pendingFrames[0]);
+                    removePendingFrames(1);
+                }
+                pendingFrames[pendingCount] = bitmap;
+                pendingTimes[pendingCount] = presentTime;
+                pendingCount++;
+            } else {
+                retireFrame(frameBp);
+                frameBp = bitmap;
+            }
+            // 同一个bitmap可能同时承担多个角色, 只有不再被使用时才能复用
+            for (int i = 0; i < retiredCount; i++) {
+                if (!isFrameInUse(retiredFrames[i])) {
+                    releasingFrames[releaseCount++] = retiredFrames[i];
+                }
+                retiredFrames[i] = null;
+            }
+            retiredCount = 0;
+        }
+        for (int i = 0; i < releaseCount; i++) {
+            releaseFrame(releasingFrames[i]);
+            releasingFrames[i] = null;
+        }
+
+        // 通知ui刷新
+        if (waitVsync) {
+            ApngVsyncInvalidator.getInstance().requestFrame(this);
+        } else if (isVisible() && isRunning() && !invalidationHandler.hasMessages(0)) {
+            invalidationHandler.sendEmptyMessageAtTime(0, 0);
+        }
+    }
+
+    // 丢弃一帧没有显示的图片, 正在显示或者等待显示时不处理
+    void discardFrame(Bitmap bitmap) {
+        synchronized (frameLock) {
+            if (isFrameInUse(bitmap)) return;
+            for (int i = 0; i < retiredCount; i++) {
+                if (retiredFrames[i] == bitmap) return;
+            }
+        }
+        releaseFrame(bitmap);
+    }
+
+    // 以下方法需要持有frameLock
+
+    // 正在显示或者等待显示
+    private boolean isFrameInUse(Bitmap bitmap) {
+        if (bitmap == frameBp) return true;
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingFrames[i] == bitmap) return true;
+        }
+        return false;
+    }
+
+    // 不再显示的帧等待解码线程放回复用池, 重复的只记录一次
+    private void retireFrame(Bitmap bitmap) {
+        if (bitmap == null || retiredCount == retiredFrames.length) return;
+        for (int i = 0; i < retiredCount; i++) {
+            if (retiredFrames[i] == bitmap) return;
+        }
+        retiredFrames[retiredCount++] = bitmap;
+    }
+
+    // 移除最早的count个等待显示的帧
+    private void removePendingFrames(int count) {
+        System.arraycopy(pendingFrames, count, pendingFrames, 0, pendingCount - count);
+        System.arraycopy(pendingTimes, count, pendingTimes, 0, pendingCount - count);
+        Arrays.fill(pendingFrames, pendingCount - count, pendingCount, null);
+        pendingCount -= count;
+    }
+
+    private void releaseFrame(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmapCache.unpinBitmap(bitmap);
+            bitmapCache.reuseBitmap(bitmap);
+        }
+    }
+
+    // 主线程vsync回调, 显示显示时间离这次vsync最近的帧
+    void onVsync(long frameTimeNanos) {
+        // frameTimeNanos与SystemClock.uptimeMillis使用同一个时钟
+        long frameTime = frameTimeNanos / 1000000;
+        boolean changed = false;
+        boolean waiting;
+        synchronized (frameLock) {
+            // 半个vsync周期内到时间的帧中最晚的一帧离这次vsync最近, 更早的帧跳过;
+            // 更晚的帧离下一次vsync更近, 继续等待
+            int shown = -1;
+            while (shown + 1 < pendingCount && pendingTimes[shown + 1] <= frameTime + VSYNC_SLACK_MILLIS) {
+                shown++;
+            }
+            if (shown >= 0) {
+                retireFrame(frameBp);
+                for (int i = 0; i < shown; i++) {
+                    retireFrame(pendingFrames[i]);
+                }
+                frameBp = pendingFrames[shown];
+                removePendingFrames(shown + 1);
+                changed = true;
+            }
+            waiting = pendingCount > 0;
+        }
+        if (waiting) {
+            ApngVsyncInvalidator.getInstance().requestFrame(this);
+        }
+        if (changed && isVisible() && isRunning()) {
+            invalidateFrame();
+        }
+    }
+
+    /**
+     * 主线程中调用, 通知宿主绘制新的一帧.
+     * ImageView的invalidateDrawable会刷新整个View, 不使用{@link #getDirtyBounds()}, 宿主是ImageView时把变化的区域
+     * 按图片矩阵和padding换算到View的坐标后直接刷新这块区域; 其他View的invalidateDrawable本身就使用getDirtyBounds
+     */
+    void invalidateFrame() {
+        Callback callback = getCallback();
+        if (callback instanceof ImageView) {
+            ImageView view = (ImageView) callback;
+            if (view.getDrawable() == this && getDirtyBounds() == dirtyRect) {
+                dirtyRectF.set(dirtyRect);
+                view.getImageMatrix().mapRect(dirtyRectF);
+                dirtyRectF.offset(view.getPaddingLeft(), view.getPaddingTop());
+                dirtyRectF.roundOut(dirtyRect);
+                view.invalidate(dirtyRect);
+                return;
+            }
+        }
+        invalidateSelf();
+    }
+
+    // 在共享的解码线程中立即执行渲染任务
+    void executeRender(Runnable task) {
+        scheduleRender(task, 0);
+    }
+
     // 是否需要再次播放
     boolean needRepeat() {
         currentLoop++;
@@ -140,28 +424,23 @@ public class ApngDrawable extends Drawable implements Animatable {
             isRunning = true;
             currentFrame = 0;
 
-            if (excutor != null) {
-                excutor.shutdownNow();
-            }
-            excutor = new ScheduledThreadPoolExecutor(1, new ThreadPoolExecutor.DiscardPolicy());
-
-            if (!frameDecode.isPrepared) {
-                //if (enableDebugLog) Log.d(TAG, "Prepare");
-                // 异步进行文件初始化准备
-                excutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        //执行动画的时候必须条用prepare来初始化
-                        frameDecode.prepare();
-                    }
-                });
+            if (renderToken != null) {
+                renderToken.cancel();
             }
+            renderToken = ApngRenderScheduler.getInstance().newToken(this);
 
             // 开始播放动画
-            excutor.execute(new Runnable() {
+            ApngRenderScheduler.getInstance().execute(renderToken, new Runnable() {
                 @Override
                 public void run() {
-                    frameDecode.startRenderFrame();
+                    if (!frameDecode.isPrepared) {
+                        //if (enableDebugLog) Log.d(TAG, "Prepare");
+                        //执行动画的时候必须条用prepare来初始化
+                        frameDecode.prepare();
+                    }
+                    if (frameDecode.isPrepared) {
+                        frameDecode.startRenderFrame();
+                    }
                     // 到ui线程通知动画开始执行
                     invalidationHandler.post(new Runnable() {
                         @Override
@@ -187,15 +466,26 @@ public class ApngDrawable extends Drawable implements Animatable {
             currentLoop = 0;
             //unscheduleSelf(this);
             isRunning = false;
-            if (excutor != null) {
-                excutor.shutdownNow();
-                excutor = null;
+            if (renderToken != null) {
+                renderToken.cancel();
             }
             if (playListener != null) {
                 playListener.onAnimationEnd(this);
             }
-            // 清空缓存
-            bitmapCache.clear();
+            synchronized (frameLock) {
+                removePendingFrames(pendingCount);
+                Arrays.fill(retiredFrames, 0, retiredCount, null);
+                retiredCount = 0;
+            }
+            // 清空缓存; 取消不会打断正在执行的解码任务, 清空作为最后一个任务在解码线程中执行, 与解码任务互斥, ui线程不等待.
+            // 执行之前重新start或者seek时这个任务被取消, 新的播放继续使用缓存
+            renderToken = ApngRenderScheduler.getInstance().newToken(this);
+            ApngRenderScheduler.getInstance().execute(renderToken, new Runnable() {
+                @Override
+                public void run() {
+                    bitmapCache.clear();
+                }
+            });
         }
     }
 
@@ -206,12 +496,64 @@ public class ApngDrawable extends Drawable implements Animatable {
 
     @Override
     public void draw(Canvas canvas) {
-        if (currentFrame <= 0) {
-            frameBp = bitmapCache.getCacheBitmap(0);
+        Bitmap bitmap = frameBp;
+        if (bitmap == null) {
+            // 还没有开始播放, 显示第一帧
+            bitmap = bitmapCache.getCacheBitmap(0);
+        }
+        if (bitmap != null) {
+            drawBitmap(canvas, bitmap);
+        }
+        drawnBp = bitmap;
+    }
+
+    /**
+     * PIXELS合成方式下, 与上一次绘制相比只有部分区域变化时, 只返回这块区域, View刷新时只重绘这部分.
+     * ImageView宿主见{@link #invalidateFrame()}; 开启硬件加速后系统会忽略刷新区域, 只有软件绘制时生效
+     */
+    @Override
+    public Rect getDirtyBounds() {
+        RectF rect = canvasRect;
+        Bitmap bitmap = frameBp;
+        if (rect != null && bitmap != null && frameDecode.getChangedRect(drawnBp, bitmap, changedRect)) {
+            // 变化的区域是合成画布上的坐标, 缩小解码时画布比原始大小小
+            float scaleX = rect.width() / bitmap.getWidth();
+            float scaleY = rect.height() / bitmap.getHeight();
+            dirtyRectF.set(rect.left + changedRect.left * scaleX, rect.top + changedRect.top * scaleY,
+                    rect.left + changedRect.right * scaleX, rect.top + changedRect.bottom * scaleY);
+            dirtyRectF.roundOut(dirtyRect);
+            return dirtyRect;
         }
-        if (frameBp != null) {
-            drawBitmap(canvas, frameBp);
+        return super.getDirtyBounds();
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        super.onBoundsChange(bounds);
+        targetWidth = bounds.width();
+        targetHeight = bounds.height();
+    }
+
+    /**
+     * 按显示区域计算缩小解码的倍数: 2的幂次, 并且缩小后的图片在scaleType下仍然不小于显示的大小
+     *
+     * @return 缩小倍数, 还不知道显示区域时返回1
+     */
+    int calculateSampleSize() {
+        int width = targetWidth;
+        int height = targetHeight;
+        if (width <= 0 || height <= 0 || baseWidth <= 0 || baseHeight <= 0) return 1;
+
+        float scalingByWidth = ((float) width) / baseWidth;
+        float scalingByHeight = ((float) height) / baseHeight;
+        // 显示时放大的倍数: CENTER_INSIDE按较小的一边缩放, FIT_XY和CENTER_CROP需要两个方向都不小于显示区域
+        float scaling = scaleType == ImageView.ScaleType.CENTER_INSIDE
+                ? Math.min(scalingByWidth, scalingByHeight) : Math.max(scalingByWidth, scalingByHeight);
+        int sampleSize = 1;
+        while (sampleSize * 2 * scaling <= 1) {
+            sampleSize *= 2;
         }
+        return sampleSize;
     }
 
     @Override
@@ -224,11 +566,21 @@ public class ApngDrawable extends Drawable implements Animatable {
         paint.setColorFilter(cf);
     }
 
+    /**
+     * 完全不透明并且铺满显示区域时返回OPAQUE, View不再绘制下面的内容; CENTER_INSIDE时两边可能留空
+     */
     @Override
     public int getOpacity() {
+        if (opaque && scaleType != ImageView.ScaleType.CENTER_INSIDE && paint.getAlpha() == 0xFF) {
+            return PixelFormat.OPAQUE;
+        }
         return PixelFormat.TRANSLUCENT;
     }
 
+    void setOpaque(boolean opaque) {
+        this.opaque = opaque;
+    }
+
     private void drawBitmap(Canvas canvas, Bitmap frameBitmap) {
         if (canvasRect == null) {
             canvasRect = calculateCanvasRect(canvas);
@@ -1,9 +1,13 @@
 package com.foretree.apng;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Locale;
 
 import ar.com.hjg.pngj.ChunkReader;
@@ -21,6 +25,8 @@ import ar.com.hjg.pngj.chunks.PngChunkFDAT;
 import ar.com.hjg.pngj.chunks.PngChunkIDAT;
 import ar.com.hjg.pngj.chunks.PngChunkIEND;
 import ar.com.hjg.pngj.chunks.PngChunkIHDR;
+import ar.com.hjg.pngj.chunks.PngChunkPLTE;
+import ar.com.hjg.pngj.chunks.PngChunkTRNS;
 
 /**
  * Source are taken from: https://github.com/leonbloy/pngj
@@ -29,21 +35,92 @@ import ar.com.hjg.pngj.chunks.PngChunkIHDR;
  * Extracts animation frames from APGN file to several PNG files<br>
  * Low level, very efficient. Does not compose frames<br>
  * Warning: this writes lots of files, in the same dir as the original PNGs.<br>
+ * Use {@link ExtractMode#MEMORY} to keep the frames in memory instead, no file will be written,
+ * or {@link ExtractMode#PACKED} to write all the frames into one packed file.<br>
  * Options:<br>
  * -q: quiet mode<br>
  * Accepts paths in the form 'mypath/*' (all pngs in dir) or 'mypath/**' (idem recursive)<br>
  */
 public class ApngExtractFrames {
 
+    /**
+     * 拆帧结果的存放方式
+     */
+    public enum ExtractMode {
+        /**
+         * 每帧写成一个独立的png文件, 与源文件放在同一目录
+         */
+        FILES,
+        /**
+         * 所有帧的png数据保存在内存中的同一块buffer里, 不生成任何文件
+         */
+        MEMORY,
+        /**
+         * 所有帧写到同一个打包文件中, 带有每帧的偏移表, 播放时mmap后按偏移读取, 见{@link ApngPackedFrameSource}
+         */
+        PACKED,
+        /**
+         * 不拆帧, 只记录每帧数据在apng文件中的位置, 播放时直接解压成像素, 见{@link ApngDirectFrameSource};
+         * 不支持的像素格式(16位、隔行扫描)自动使用MEMORY
+         */
+        DIRECT
+    }
+
+    // 可以直接访问内部数组的ByteArrayOutputStream, 避免toByteArray时再拷贝一次
+    static class FrameBlobOutputStream extends ByteArrayOutputStream {
+        FrameBlobOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
     static class PngReaderBuffered extends PngReader {
         private File orig;
+        private final ExtractMode mode;
 
         public PngReaderBuffered(File file) {
+            this(file, ExtractMode.FILES);
+        }
+
+        public PngReaderBuffered(File file, ExtractMode mode) {
             super(file);
             this.orig = file;
+            if (mode == ExtractMode.DIRECT && !ApngPixelDecoder.isSupported(ApngPixelDecoder.getColorType(imgInfo), imgInfo.bitDepth, interlaced)) {
+                mode = ExtractMode.MEMORY;
+            }
+            this.mode = mode;
+            if (mode == ExtractMode.MEMORY || mode == ExtractMode.PACKED) {
+                // 拆出的帧总大小与源文件相当
+                blob = new FrameBlobOutputStream((int) Math.max(file.length(), 1024));
+            }
+        }
+
+        /**
+         * 边下载边解析, 只支持DIRECT方式; 输入流中的数据需要已经写入file中, 这样记录的数据位置才能直接读取;
+         * 输入流由调用者关闭
+         */
+        PngReaderBuffered(InputStream input, File file) {
+            super(input, false); // 解析结束后还要读完剩下的数据
+            this.orig = file;
+            this.mode = ExtractMode.DIRECT;
+        }
+
+        /**
+         * 前count帧的数据已经全部读到, 新一帧的fcTL或者IEND到达时调用, 在解析的线程中执行
+         */
+        protected void onFramesAvailable(int count) {
         }
 
-        FileOutputStream fo = null;
+        OutputStream fo = null;
+        FrameBlobOutputStream blob;
+        int[] frameOffsets = new int[16];
+        int[] frameLengths = new int[16];
+        ApngInfo info; // 拆帧的同时收集的apng信息, 可以为null
+        int writingFrame = -1; // 正在写入的帧, 新帧的fcTL到达时frameIndex已经加1, 不能用来结束上一帧
+        boolean frameStarted = false; // 是否已经读到第一个fcTL, 之后的IDAT才属于动画
         File dest;
         ImageInfo frameInfo;
         int frameIndex = -1;
@@ -67,28 +144,49 @@ public class ApngExtractFrames {
                     try {
                         String id = chunkR.getChunkRaw().id;
                         PngChunk lastChunk = chunksList.getChunks().get(chunksList.getChunks().size() - 1);
+                        if (id.equals(PngChunkACTL.ID)) {
+                            if (info != null) info.setAnimationControl((PngChunkACTL) lastChunk);
+                        }
+                        if (id.equals(PngChunkPLTE.ID)) {
+                            if (info != null) info.setPalette((PngChunkPLTE) lastChunk);
+                        }
+                        if (id.equals(PngChunkTRNS.ID)) {
+                            if (info != null) info.setTransparency((PngChunkTRNS) lastChunk);
+                        }
                         if (id.equals(PngChunkFCTL.ID)) {
                             frameIndex++;
                             frameInfo = ((PngChunkFCTL) lastChunk).getEquivImageInfo();
+                            if (info != null) info.addFrame((PngChunkFCTL) lastChunk);
                             startNewFile();
+                            // 新的fcTL到达说明前面的帧数据都已经读完
+                            if (frameIndex > 0) onFramesAvailable(frameIndex);
                         }
                         if (id.equals(PngChunkFDAT.ID) || id.equals(PngChunkIDAT.ID)) {
+                            ChunkRaw raw = chunkR.getChunkRaw();
                             if (id.equals(PngChunkIDAT.ID)) {
                                 // copy IDAT as is (only if file is open == if FCTL previous == if IDAT is part of the animation
-                                if (fo != null)
-                                    chunkR.getChunkRaw().writeChunk(fo);
+                                if (frameStarted) {
+                                    if (fo != null) raw.writeChunk(fo);
+                                    // 数据在块起始位置的长度和类型字段之后
+                                    if (info != null) info.addFrameData(raw.getOffset() + 8, raw.len);
+                                }
                             } else {
-                                // copy fDAT as IDAT, trimming the first 4 bytes
-                                ChunkRaw crawi =
-                                        new ChunkRaw(chunkR.getChunkRaw().len - 4, ChunkHelper.b_IDAT, true);
-                                System.arraycopy(chunkR.getChunkRaw().data, 4, crawi.data, 0, crawi.data.length);
-                                crawi.writeChunk(fo);
+                                // fdAT的数据前面还有4字节的序号
+                                if (info != null) info.addFrameData(raw.getOffset() + 12, raw.len - 4);
+                                if (fo != null) {
+                                    // copy fDAT as IDAT, trimming the first 4 bytes
+                                    ChunkRaw crawi =
+                                            new ChunkRaw(chunkR.getChunkRaw().len - 4, ChunkHelper.b_IDAT, true);
+                                    System.arraycopy(chunkR.getChunkRaw().data, 4, crawi.data, 0, crawi.data.length);
+                                    crawi.writeChunk(fo);
+                                }
                             }
                             chunkR.getChunkRaw().data = null; // be kind, release memory
                         }
                         if (id.equals(PngChunkIEND.ID)) {
                             if (fo != null)
                                 endFile(); // end last file
+                            onFramesAvailable(frameIndex + 1);
                         }
                     } catch (Exception e) {
                         throw new PngjException(e);
@@ -99,8 +197,20 @@ public class ApngExtractFrames {
 
         private void startNewFile() throws Exception {
             if (fo != null) endFile();
-            dest = createOutputName();
-            fo = new FileOutputStream(dest);
+            frameStarted = true;
+            if (mode == ExtractMode.DIRECT) return; // 只记录数据位置, 不写帧
+            if (mode != ExtractMode.FILES) {
+                if (frameIndex >= frameOffsets.length) {
+                    frameOffsets = Arrays.copyOf(frameOffsets, frameOffsets.length * 2);
+                    frameLengths = Arrays.copyOf(frameLengths, frameLengths.length * 2);
+                }
+                frameOffsets[frameIndex] = blob.size();
+                writingFrame = frameIndex;
+                fo = blob;
+            } else {
+                dest = createOutputName();
+                fo = new FileOutputStream(dest);
+            }
             fo.write(PngHelperInternal.getPngIdSignature());
             PngChunkIHDR ihdr = new PngChunkIHDR(frameInfo);
             ihdr.createRawChunk().writeChunk(fo);
@@ -122,7 +232,11 @@ public class ApngExtractFrames {
 
         private void endFile() throws IOException {
             new PngChunkIEND(null).createRawChunk().writeChunk(fo);
-            fo.close();
+            if (mode != ExtractMode.FILES) {
+                frameLengths[writingFrame] = blob.size() - frameOffsets[writingFrame];
+            } else {
+                fo.close();
+            }
             fo = null;
         }
 
@@ -163,4 +277,120 @@ public class ApngExtractFrames {
         return pngr.frameIndex + 1;
     }
 
+    /**
+     * Reads a APNG file and splits it into its frames with the given mode, returns the source of the extracted frames
+     */
+    public static ApngFrameSource process(final File orig, ExtractMode mode) {
+        return process(orig, mode, null);
+    }
+
+    /**
+     * Reads a APNG file and splits it into its frames with the given mode, returns the source of the extracted frames.
+     * The animation information is collected into {@code info} during the same scan, so the file is parsed only once.
+     */
+    public static ApngFrameSource process(final File orig, ExtractMode mode, ApngInfo info) {
+        PngReaderBuffered pngr = new PngReaderBuffered(orig, mode);
+        mode = pngr.mode;
+        if (info == null && mode == ExtractMode.DIRECT) {
+            // 直接解码需要每帧数据的位置
+            info = new ApngInfo();
+        }
+        pngr.info = info;
+        if (info != null) info.setImageHeader(pngr.imgInfo, pngr.interlaced);
+        pngr.end();
+        int frameCount = pngr.frameIndex + 1;
+        if (mode == ExtractMode.FILES) {
+            return new ApngFileFrameSource(orig, frameCount, info);
+        }
+        if (mode == ExtractMode.DIRECT) {
+            return new ApngDirectFrameSource(orig, info);
+        }
+        if (mode == ExtractMode.PACKED && frameCount > 0) {
+            // 整个apng的帧只写一个文件
+            File packFile = new File(orig.getParent(), ApngPackedFrameSource.getFileName(orig));
+            if (ApngPackedFrameSource.write(packFile, pngr.blob.buffer(), pngr.frameOffsets, pngr.frameLengths, frameCount)) {
+                ApngPackedFrameSource packedSource = ApngPackedFrameSource.open(packFile, info);
+                if (packedSource != null) return packedSource;
+            }
+            // 写文件失败时直接使用内存中的数据
+        }
+        return new ApngMemoryFrameSource(pngr.blob.buffer(), pngr.frameOffsets, pngr.frameLengths, frameCount, info);
+    }
+
+
+    /**
+     * Result of {@link #load(File, ExtractMode)}
+     */
+    public static class LoadResult {
+        /**
+         * APNG information, shared through {@link ApngInfoCache}, do not modify
+         */
+        public final ApngInfo info;
+        /**
+         * Source of the extracted frames, null if the file is not an APNG
+         */
+        public final ApngFrameSource frameSource;
+
+        LoadResult(ApngInfo info, ApngFrameSource frameSource) {
+            this.info = info;
+            this.frameSource = frameSource;
+        }
+    }
+
+    /**
+     * Same as {@link #process(File, ExtractMode, ApngInfo)}, but reuses the information parsed before (in memory through
+     * {@link ApngInfoCache}, or saved next to the APNG file) and the frames extracted by a previous call, so that
+     * repeated plays of the same file skip parsing entirely.
+     * The information is saved and cached for the next call after a real extraction.
+     */
+    public static LoadResult load(final File orig, ExtractMode mode) {
+        ApngInfoCache infoCache = ApngInfoCache.getInstance();
+        ApngInfo info = infoCache.get(orig);
+        boolean saved; // 文件旁边是否已经有最新的解析结果
+        if (info == null) {
+            info = new ApngInfo();
+            saved = info.load(orig);
+            if (saved) {
+                infoCache.put(orig, info);
+            } else {
+                info = null;
+            }
+        } else {
+            // 缓存的解析结果与文件当前的长度和修改时间对应, 由之前的load保存过
+            saved = new File(orig.getParent(), ApngInfo.getFileName(orig)).exists();
+        }
+        if (info != null) {
+            // 不是apng时不需要拆帧
+            if (!info.isApng()) return new LoadResult(info, null);
+            ApngFrameSource frameSource = openExtracted(orig, mode, info);
+            if (frameSource != null) return new LoadResult(info, frameSource);
+        }
+        info = new ApngInfo();
+        ApngFrameSource frameSource = process(orig, mode, info);
+        // 内存方式每次都要重新拆帧, 解析结果没有变化时不再重复写入
+        if (!saved) info.save(orig);
+        infoCache.put(orig, info);
+        return new LoadResult(info, frameSource);
+    }
+
+    // 打开之前拆好的帧, 内存方式的拆帧结果不会保留, 只能重新拆帧
+    private static ApngFrameSource openExtracted(File orig, ExtractMode mode, ApngInfo info) {
+        int frameCount = info.frameCount;
+        switch (mode) {
+            case FILES:
+                return ApngFileFrameSource.open(orig, frameCount, info);
+            case PACKED:
+                File packFile = new File(orig.getParent(), ApngPackedFrameSource.getFileName(orig));
+                if (packFile.lastModified() < orig.lastModified()) return null;
+                ApngPackedFrameSource packedSource = ApngPackedFrameSource.open(packFile, info);
+                if (packedSource != null && packedSource.getFrameCount() == frameCount) {
+                    return packedSource;
+                }
+                return null;
+            case DIRECT:
+                return ApngDirectFrameSource.isSupported(info) ? new ApngDirectFrameSource(orig, info) : null;
+            default:
+                return null;
+        }
+    }
 }
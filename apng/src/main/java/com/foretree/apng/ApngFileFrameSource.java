@@ -0,0 +1,142 @@
+package com.foretree.apng;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * 每帧一个png文件的帧数据来源, 文件名由{@link ApngExtractFrames#getFileName(File, int)}生成
+ * <p>
+ * 第0帧直接解码apng源文件, 与拆帧前的行为保持一致
+ * <p>
+ * 帧文件的路径在创建时就生成好; 解码过的帧文件保持打开, 最多打开{@link #MAX_OPEN_FILES}个,
+ * 超过时关闭最久没有使用的帧文件
+ * <p>
+ * 有apng信息时帧的宽高直接使用fcTL中的宽高(第0帧为IHDR中的宽高), 解码时不再读取图片头
+ */
+public class ApngFileFrameSource implements ApngFrameSource {
+
+    // 每个apng最多保持打开的帧文件数
+    private static final int MAX_OPEN_FILES = 16;
+
+    private final File baseFile;
+    private final int frameCount;
+    private final String[] framePaths;
+    private final FileInputStream[] frameStreams; // 按帧序号存放打开的帧文件
+    private final int[] openFrames; // 打开的帧按最近使用排序, 第0个是最近使用的
+    private int openCount;
+    private final ApngInfo info; // 可以为null, 为null时解码前读取图片头
+    private final BitmapFactory.Options options = ApngImageUtils.createReusableOptions(); // 逐帧解码反复使用
+    private int sampleSize = 1;
+
+    public ApngFileFrameSource(File baseFile, int frameCount) {
+        this(baseFile, frameCount, null);
+    }
+
+    ApngFileFrameSource(File baseFile, int frameCount, ApngInfo info) {
+        this.baseFile = baseFile;
+        this.info = info;
+        this.frameCount = frameCount;
+        framePaths = new String[Math.max(frameCount, 1)];
+        framePaths[0] = baseFile.getPath();
+        for (int i = 1; i < frameCount; i++) {
+            framePaths[i] = getFrameFile(baseFile, i).getPath();
+        }
+        frameStreams = new FileInputStream[framePaths.length];
+        openFrames = new int[Math.min(framePaths.length, MAX_OPEN_FILES)];
+    }
+
+    /**
+     * 使用之前已经拆好的帧文件, 帧文件不完整或者比apng文件旧时返回null
+     */
+    public static ApngFileFrameSource open(File baseFile, int frameCount) {
+        return open(baseFile, frameCount, null);
+    }
+
+    static ApngFileFrameSource open(File baseFile, int frameCount, ApngInfo info) {
+        for (int i = 1; i < frameCount; i++) {
+            File frameFile = getFrameFile(baseFile, i);
+            if (!frameFile.exists() || frameFile.lastModified() < baseFile.lastModified()) {
+                return null;
+            }
+        }
+        return new ApngFileFrameSource(baseFile, frameCount, info);
+    }
+
+    private static File getFrameFile(File baseFile, int frameIndex) {
+        return new File(baseFile.getParent(), ApngExtractFrames.getFileName(baseFile, frameIndex));
+    }
+
+    @Override
+    public synchronized Bitmap decodeFrame(int frameIndex, Bitmap reuseBitmap) {
+        if (frameIndex < 0 || frameIndex >= framePaths.length) return null;
+        int width = 0;
+        int height = 0;
+        if (info != null && frameIndex < info.frameCount) {
+            width = frameIndex == 0 ? info.getWidth() : info.getFrameWidth(frameIndex);
+            height = frameIndex == 0 ? info.getHeight() : info.getFrameHeight(frameIndex);
+        }
+        try {
+            FileInputStream stream = frameStreams[frameIndex];
+            if (stream == null) {
+                stream = new FileInputStream(framePaths[frameIndex]);
+                frameStreams[frameIndex] = stream;
+            }
+            markUsed(frameIndex);
+            // 解码不会改变文件的读取位置, 打开的文件可以反复解码
+            return ApngImageUtils.decodeFileDescriptor(stream.getFD(), width, height, sampleSize, reuseBitmap,
+                    options);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // 把这一帧移到最近使用的位置, 新打开的帧文件超出上限时关闭最久没有使用的帧文件
+    private void markUsed(int frameIndex) {
+        int pos = 0;
+        while (pos < openCount && openFrames[pos] != frameIndex) pos++;
+        if (pos == openCount) {
+            if (openCount == openFrames.length) {
+                pos = --openCount;
+                closeStream(openFrames[pos]);
+            } else {
+                pos = openCount;
+            }
+            openCount++;
+        }
+        System.arraycopy(openFrames, 0, openFrames, 1, pos);
+        openFrames[0] = frameIndex;
+    }
+
+    private void closeStream(int frameIndex) {
+        if (frameStreams[frameIndex] == null) return;
+        try {
+            frameStreams[frameIndex].close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        frameStreams[frameIndex] = null;
+    }
+
+    @Override
+    public synchronized void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(sampleSize, 1);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public synchronized void release() {
+        for (int i = 0; i < openCount; i++) {
+            closeStream(openFrames[i]);
+        }
+        openCount = 0;
+    }
+}
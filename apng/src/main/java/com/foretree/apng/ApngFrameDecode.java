@@ -4,18 +4,12 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
-import android.util.Pair;
+import android.graphics.Rect;
+import android.os.SystemClock;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import ar.com.hjg.pngj.PngReaderApng;
-import ar.com.hjg.pngj.chunks.PngChunk;
-import ar.com.hjg.pngj.chunks.PngChunkACTL;
+import java.util.Arrays;
+
 import ar.com.hjg.pngj.chunks.PngChunkFCTL;
 
 /**
@@ -23,20 +17,75 @@ import ar.com.hjg.pngj.chunks.PngChunkFCTL;
  * <p>
  * Apng解码类
  * <p>
- * 1. prepare(); 首先需要调用prepare()对apng文件进行拆解, 包括拆成每帧的小文件, 以及读取块信息等;
+ * 1. prepare(); 首先需要调用prepare()对apng文件进行拆解, 拆帧的同时读取块信息, 整个文件只扫描一次;
  * 2. createFrameBitmap(frameIndex); 然后调用createFrameBitmap进行每帧数据的解码
  */
 public class ApngFrameDecode {
 
     static final float DELAY_FACTOR = 1000F;
 
+    /**
+     * 默认的拆帧方式, 新创建的解码器都会使用这个设置
+     */
+    public static ApngExtractFrames.ExtractMode DEFAULT_EXTRACT_MODE = ApngExtractFrames.ExtractMode.FILES;
+
+    /**
+     * 合成方式
+     * <p>
+     * CANVAS: 每帧用Canvas把上一帧和当前帧画到一张新的bitmap上
+     * PIXELS: 在常驻的int[]画布上只处理当前帧的区域({@link ApngCompositor}), 每帧用一次setPixels输出,
+     * 并且只同步变化的区域({@link ApngFrameOutput})
+     */
+    public enum ComposeMode {
+        CANVAS, PIXELS
+    }
+
+    /**
+     * 默认的合成方式, 新创建的解码器都会使用这个设置
+     */
+    public static ComposeMode DEFAULT_COMPOSE_MODE = ComposeMode.CANVAS;
+
+    /**
+     * 是否默认按显示大小缩小解码, 新创建的解码器都会使用这个设置, 见{@link #setDownsample(boolean)}
+     */
+    public static boolean DEFAULT_DOWNSAMPLE = false;
+
     protected boolean isPrepared = false;
 
     private File baseFile;
+    private ApngExtractFrames.ExtractMode extractMode = DEFAULT_EXTRACT_MODE;
+    private ComposeMode composeMode = DEFAULT_COMPOSE_MODE;
+    private boolean downsample = DEFAULT_DOWNSAMPLE;
+    // 解码和合成使用的缩小倍数, 画布大小为原始大小按这个倍数缩小后的大小, fcTL中的位置和宽高按同样的方式缩小
+    private int sampleSize = 1;
+    private int canvasWidth;
+    private int canvasHeight;
+    private ApngFrameSource frameSource;
     protected int frameCount;
     protected int playCount;
-    private ArrayList<PngChunkFCTL> fctlArrayList = new ArrayList<>();
-    private Map<Integer, Pair<Integer, Integer>> frameWHMap = new HashMap<Integer, Pair<Integer, Integer>>();// 存储着每帧的宽高, 因为解析后面帧的时候可能需要前面帧的宽高
+    private ApngInfo apngInfo;
+    // 存储着每帧解码出的宽高(0表示还没有解码), 因为解析后面帧的时候可能需要前面帧的宽高
+    private int[] frameWidths = new int[0];
+    private int[] frameHeights = new int[0];
+
+    // PIXELS方式的画布, 以及画布上当前合成到的帧
+    private ApngCompositor compositor;
+    private int composedIndex = -1;
+    private int[] framePixels = new int[0]; // 解码出的帧像素, 大小按最大的帧增长
+    private final ApngFrameOutput frameOutput = new ApngFrameOutput(); // 只同步变化区域的输出bitmap
+
+    // dispose_op为PREVIOUS的帧绘制之前, 只保存它即将覆盖的区域, 合成下一帧时再拷回去, 不需要缓存更早的整帧
+    private Bitmap previousRegion;
+    private int previousRegionFrame = -1;
+    private int previousRegionX;
+    private int previousRegionY;
+    private int previousRegionWidth;
+    private int previousRegionHeight;
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+
+    // 合成时反复使用的画布, 每次通过setBitmap切换目标bitmap, 解码都在drawable的锁内进行, 不会并发使用
+    private final Canvas canvas = new Canvas();
 
     ApngDrawable apngDrawable;
     ApngRenderTask renderTask;
@@ -55,8 +104,7 @@ public class ApngFrameDecode {
         if (imagePath == null) return;
         baseFile = new File(imagePath);
         if (!baseFile.exists()) return;
-        ApngExtractFrames.process(baseFile);
-        readApngInformation(baseFile);
+        if (!extractFrames()) return;
         isPrepared = true;
         //scheduleSelf(this, SystemClock.uptimeMillis() + delay);
     }
@@ -69,62 +117,276 @@ public class ApngFrameDecode {
         if (filePath == null) return;
         baseFile = new File(filePath);
         if (!baseFile.exists()) return;
-        ApngExtractFrames.process(baseFile);
-        readApngInformation(baseFile);
+        if (!extractFrames()) return;
+        isPrepared = true;
+    }
+
+    /**
+     * 使用已经解析好的结果初始化解码器, 不再读取文件
+     *
+     * @param apngFile    apng文件
+     * @param info        解析出的apng信息
+     * @param frameSource 拆出的帧数据
+     */
+    void prepare(File apngFile, ApngInfo info, ApngFrameSource frameSource) {
+        baseFile = apngFile;
+        if (this.frameSource != null && this.frameSource != frameSource) {
+            this.frameSource.release();
+        }
+        this.frameSource = frameSource;
+        applyApngInformation(info);
         isPrepared = true;
     }
 
+    /**
+     * 释放拆出的帧数据, 之后播放时重新prepare
+     */
+    void release() {
+        if (frameSource != null) {
+            frameSource.release();
+            frameSource = null;
+        }
+        isPrepared = false;
+    }
+
+    /**
+     * 设置拆帧方式, 需要在prepare之前调用
+     *
+     * @param extractMode 拆帧方式
+     */
+    public void setExtractMode(ApngExtractFrames.ExtractMode extractMode) {
+        this.extractMode = extractMode;
+    }
+
+    public ApngExtractFrames.ExtractMode getExtractMode() {
+        return extractMode;
+    }
+
+    /**
+     * 设置合成方式, 需要在prepare之前调用
+     *
+     * @param composeMode 合成方式
+     */
+    public void setComposeMode(ComposeMode composeMode) {
+        this.composeMode = composeMode;
+    }
+
+    public ComposeMode getComposeMode() {
+        return composeMode;
+    }
+
+    /**
+     * 设置是否按显示大小缩小解码
+     * <p>
+     * 打开时每次开始播放(或者跳转)前按drawable的显示区域选择2的幂次的缩小倍数, 解码、合成和缓存都使用缩小后的大小,
+     * 绘制时再放大到显示区域; 播放过程中显示区域变化时, 下一次开始播放时才使用新的倍数
+     *
+     * @param downsample 是否缩小解码
+     */
+    public void setDownsample(boolean downsample) {
+        this.downsample = downsample;
+    }
+
+    public boolean isDownsample() {
+        return downsample;
+    }
+
+    /**
+     * @return 当前解码和合成使用的缩小倍数
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    // 拆帧, 并释放之前拆出的帧数据. 拆帧的同时读取apng文件块信息, 整个文件只解析一次, 解析过的文件不再解析
+    private boolean extractFrames() {
+        if (frameSource != null) {
+            frameSource.release();
+        }
+        ApngExtractFrames.LoadResult result = ApngExtractFrames.load(baseFile, extractMode);
+        frameSource = result.frameSource;
+        if (frameSource == null) return false;
+        applyApngInformation(result.info);
+        return true;
+    }
+
     protected void startRenderFrame() {
         if (apngDrawable.currentFrame < 0) {
             apngDrawable.currentFrame = 0;
-        } else if (apngDrawable.currentFrame >= fctlArrayList.size() - 1) {
+        } else if (apngDrawable.currentFrame >= frameCount - 1) {
             apngDrawable.currentFrame = 0;
         }
 
+        updateSampleSize();
+
         // 生成第一张图片
-        createFrameBitmap(0);
+        Bitmap firstBitmap = createFrameBitmap(0);
+        long now = SystemClock.uptimeMillis();
+        apngDrawable.publishFrame(firstBitmap, now);
         int delay = getFrameDelay(0);
 
-        apngDrawable.excutor.schedule(renderTask, delay, TimeUnit.MILLISECONDS);
+        renderTask.startTimeline(now + delay, 0);
+        apngDrawable.scheduleRender(renderTask, delay);
+    }
+
+    /**
+     * 跳到指定帧并显示, 从这一帧之前最近的关键帧开始合成
+     *
+     * @param frameIndex 帧序号, 超出范围时使用最后一帧(边下载边播放时为已经下载的最后一帧)
+     * @param play       是否从这一帧继续播放
+     */
+    protected void seekRenderFrame(int frameIndex, boolean play) {
+        int lastFrame = Math.min(frameCount, frameSource.getFrameCount()) - 1;
+        frameIndex = Math.max(Math.min(frameIndex, lastFrame), 0);
+        updateSampleSize();
+
+        Bitmap bitmap = seekFrameBitmap(frameIndex);
+        long now = SystemClock.uptimeMillis();
+        apngDrawable.currentFrame = frameIndex;
+        apngDrawable.publishFrame(bitmap, now);
+        if (play) {
+            int delay = getFrameDelay(frameIndex);
+            renderTask.startTimeline(now + delay, frameIndex);
+            apngDrawable.scheduleRender(renderTask, delay);
+        }
+    }
+
+    /**
+     * 播放到timeMs时应该显示的帧, 超过一轮时按循环播放计算; 边下载边播放时只计算已经下载的帧
+     */
+    int getFrameAtTime(long timeMs) {
+        int count = 0;
+        long duration = 0;
+        while (hasFrame(count)) {
+            duration += getFrameDelay(count);
+            count++;
+        }
+        if (count == 0 || duration <= 0) return 0;
+        long time = Math.max(timeMs, 0) % duration;
+        for (int i = 0; i < count; i++) {
+            int delay = getFrameDelay(i);
+            if (time < delay) return i;
+            time -= delay;
+        }
+        return count - 1;
+    }
+
+    // 合成指定的帧, 画布或者缓存中有可以接着合成的帧时从那里继续, 否则从最近的关键帧开始
+    private Bitmap seekFrameBitmap(int frameIndex) {
+        if (composeMode == ComposeMode.PIXELS) {
+            return createFrameBitmap(frameIndex);
+        }
+        ApngBitmapCache bitmapCache = apngDrawable.bitmapCache;
+        if (bitmapCache.hasCacheBitmap(frameIndex)) {
+            return bitmapCache.getCacheBitmap(frameIndex);
+        }
+        int startIndex = apngInfo.getKeyFrame(frameIndex);
+        for (int i = frameIndex - 1; i >= startIndex; i--) {
+            if (bitmapCache.hasCacheBitmap(i)) {
+                startIndex = i + 1;
+                break;
+            }
+        }
+        Bitmap bitmap = null;
+        for (int i = startIndex; i <= frameIndex; i++) {
+            bitmap = createFrameBitmap(i);
+        }
+        return bitmap;
     }
 
     // 获取每帧的延迟
     public int getFrameDelay(int frameIndex) {
-        PngChunkFCTL pngChunk = fctlArrayList.get(frameIndex);
-        int delayNum = pngChunk.getDelayNum();
-        int delayDen = pngChunk.getDelayDen();
-        int delay = Math.round(delayNum * ApngFrameDecode.DELAY_FACTOR / delayDen);
-        return delay;
+        return apngInfo.getFrameDelay(frameIndex);
+    }
+
+    // 按drawable当前的显示区域重新选择缩小倍数, 倍数变化时丢弃按原来大小解码和合成的所有内容
+    private void updateSampleSize() {
+        int newSampleSize = downsample ? apngDrawable.calculateSampleSize() : 1;
+        if (newSampleSize == sampleSize) return;
+
+        ApngBitmapCache bitmapCache = apngDrawable.bitmapCache;
+        Bitmap firstBitmap = bitmapCache.getCacheBitmap(0);
+        if (apngDrawable.frameBp == null && firstBitmap != null) {
+            // 还没有开始播放时显示的是缓存中的第一帧, 清空缓存前先让它成为正在显示的帧, 避免被复用
+            apngDrawable.publishFrame(firstBitmap, SystemClock.uptimeMillis());
+        }
+        bitmapCache.clear();
+        applySampleSize(newSampleSize);
+        compositor = null;
+        composedIndex = -1;
+        previousRegionFrame = -1;
+        Arrays.fill(frameWidths, 0);
+        Arrays.fill(frameHeights, 0);
+        bitmapCache.setMaxCacheSize(1);
+        bitmapCache.setAnimationSize(frameCount, canvasWidth, canvasHeight);
+    }
+
+    private void applySampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+        canvasWidth = ApngImageUtils.getSampledSize(apngInfo.getWidth(), sampleSize);
+        canvasHeight = ApngImageUtils.getSampledSize(apngInfo.getHeight(), sampleSize);
+        if (frameSource != null) {
+            frameSource.setSampleSize(sampleSize);
+        }
+    }
+
+    // 缩小后的帧位置和宽高, 与解码出的帧大小使用同样的取整方式
+    private int getFrameX(int frameIndex) {
+        return apngInfo.getFrameX(frameIndex) / sampleSize;
+    }
+
+    private int getFrameY(int frameIndex) {
+        return apngInfo.getFrameY(frameIndex) / sampleSize;
+    }
+
+    private int getFrameWidth(int frameIndex) {
+        return ApngImageUtils.getSampledSize(apngInfo.getFrameWidth(frameIndex), sampleSize);
+    }
+
+    private int getFrameHeight(int frameIndex) {
+        return ApngImageUtils.getSampledSize(apngInfo.getFrameHeight(frameIndex), sampleSize);
     }
 
     // 解码每帧
     public Bitmap createFrameBitmap(final int frameIndex) {
+        if (composeMode == ComposeMode.PIXELS) {
+            if (apngDrawable.bitmapCache.isFullCache() && apngDrawable.bitmapCache.hasCacheBitmap(frameIndex)) {
+                return apngDrawable.bitmapCache.getCacheBitmap(frameIndex);
+            }
+            return createFrameBitmapByPixels(frameIndex);
+        }
+
         if (frameIndex == 0) {
             // 生成第一张图片
-            String imagePath = apngDrawable.getImagePathFromUri();
             Bitmap bitmap = apngDrawable.bitmapCache.getCacheBitmap(0);
             if (bitmap == null) {
-                bitmap = ApngImageUtils.decodeFileToDrawable(ApngImageUtils.Scheme.FILE.wrap(imagePath),
-                        apngDrawable.bitmapCache.getReuseBitmap(apngDrawable.baseWidth, apngDrawable.baseHeight));
+                if (apngDrawable.bitmapCache.getCanvasConfig() == Bitmap.Config.ARGB_8888) {
+                    bitmap = frameSource.decodeFrame(0,
+                            apngDrawable.bitmapCache.getReuseBitmap(canvasWidth, canvasHeight));
+                } else {
+                    // 画布不是ARGB_8888时, 解码出的帧再画到画布格式的bitmap上
+                    Bitmap frameBitmap = decodeFrame(0);
+                    if (frameBitmap != null) {
+                        bitmap = handleBlendingOperation(getFrameX(0), getFrameY(0),
+                                PngChunkFCTL.APNG_BLEND_OP_SOURCE, frameBitmap, null);
+                        apngDrawable.bitmapCache.reuseBitmap(frameBitmap);
+                    }
+                }
                 apngDrawable.bitmapCache.cacheBitmap(0, bitmap);
             }
             return bitmap;
         }
 
-        Bitmap currentBitmap = null;
-        String path = new File(apngDrawable.workingPath, ApngExtractFrames.getFileName(baseFile, frameIndex)).getPath();
-        try {
-            Bitmap clipBitmap = apngDrawable.bitmapCache.getReuseBitmap(apngDrawable.baseWidth, apngDrawable.baseHeight);
-            currentBitmap = ApngImageUtils.decodeFileToDrawable(ApngImageUtils.Scheme.FILE.wrap(path), clipBitmap);
-            if (clipBitmap != currentBitmap) {
-                apngDrawable.bitmapCache.reuseBitmap(clipBitmap);
-            }
-        } catch (Throwable throwable) {
-            throwable.printStackTrace();
+        // 小动画的所有帧都缓存着, 第一轮之后不再解码
+        if (apngDrawable.bitmapCache.isFullCache() && apngDrawable.bitmapCache.hasCacheBitmap(frameIndex)) {
+            return apngDrawable.bitmapCache.getCacheBitmap(frameIndex);
         }
+
+        Bitmap currentBitmap = decodeFrame(frameIndex);
         // 把该帧图片的宽高存储起来, 后面可能需要
-        if (currentBitmap != null) {
-            frameWHMap.put(frameIndex, new Pair<>(currentBitmap.getWidth(), currentBitmap.getHeight()));
+        if (currentBitmap != null && frameIndex < frameWidths.length) {
+            frameWidths[frameIndex] = currentBitmap.getWidth();
+            frameHeights[frameIndex] = currentBitmap.getHeight();
         }
 
         // 2. 先合成出上一帧图片
@@ -132,10 +394,12 @@ public class ApngFrameDecode {
 
         // 3. 使用上一帧图片和当前帧图片合成出当前需要展示的图片
         Bitmap complexBitmap;
-        PngChunkFCTL chunk = fctlArrayList.get(frameIndex);
-        byte blendOp = chunk.getBlendOp();
-        int offsetX = chunk.getxOff();
-        int offsetY = chunk.getyOff();
+        byte blendOp = apngInfo.getBlendOp(frameIndex);
+        int offsetX = getFrameX(frameIndex);
+        int offsetY = getFrameY(frameIndex);
+        if (apngInfo.getDisposeOp(frameIndex) == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS && currentBitmap != null) {
+            savePreviousRegion(frameIndex, offsetX, offsetY, currentBitmap.getWidth(), currentBitmap.getHeight(), previousBitmap);
+        }
         complexBitmap = handleBlendingOperation(offsetX, offsetY, blendOp, currentBitmap, previousBitmap);
 
         // 同时保存到缓存
@@ -147,46 +411,163 @@ public class ApngFrameDecode {
         return complexBitmap;
     }
 
-    // 初始化的时候读取apng文件块信息
-    private void readApngInformation(File apngFile) {
-        PngReaderApng reader = new PngReaderApng(apngFile);
-        reader.end();
+    // 在int[]画布上合成到指定帧, 再一次性输出到bitmap
+    private Bitmap createFrameBitmapByPixels(int frameIndex) {
+        ApngBitmapCache bitmapCache = apngDrawable.bitmapCache;
+        int width = canvasWidth;
+        int height = canvasHeight;
+        if (compositor == null || compositor.getWidth() != width || compositor.getHeight() != height) {
+            compositor = new ApngCompositor(width, height);
+            composedIndex = -1;
+        }
 
-        List<PngChunk> pngChunks = reader.getChunksList().getChunks();
-        PngChunk chunk;
+        // 画布上的帧在要合成的帧之前, 并且不早于最近的关键帧时接着合成, 否则(比如跳过了缓存中的帧、跳转)从关键帧重新合成
+        int keyFrame = apngInfo.getKeyFrame(frameIndex);
+        boolean restart = composedIndex < 0 || composedIndex > frameIndex || composedIndex < keyFrame - 1;
+        int startIndex = restart ? keyFrame : composedIndex + 1;
+        for (int i = startIndex; i <= frameIndex; i++) {
+            composePixels(i, restart && i == startIndex);
+        }
 
-        // 计算最大需要的缓存大小
-        int maxCacheSize = 1;
+        if (!bitmapCache.isFullCache()) {
+            // 轮流使用几张输出bitmap, 每次只同步变化的区域
+            return frameOutput.output(bitmapCache, compositor.getPixels(), width, height);
+        }
 
-        for (int i = 0; i < pngChunks.size(); i++) {
-            chunk = pngChunks.get(i);
+        // 全缓存时每帧都要保留下来, 输出到单独的bitmap
+        Bitmap bitmap = bitmapCache.getCanvasBitmap(width, height);
+        if (bitmap == null) return null;
+        bitmap.setPixels(compositor.getPixels(), 0, width, 0, 0, width, height);
+        bitmapCache.cacheBitmap(frameIndex, bitmap);
+        return bitmap;
+    }
 
-            if (chunk instanceof PngChunkACTL) {
-                frameCount = ((PngChunkACTL) chunk).getNumFrames();
+    /**
+     * 取得从上一次显示的帧切换到当前帧时变化的区域, 只在PIXELS合成方式下有效
+     *
+     * @return 两帧不是相邻的两次输出时返回false
+     */
+    boolean getChangedRect(Bitmap previous, Bitmap current, Rect outRect) {
+        return composeMode == ComposeMode.PIXELS && frameOutput.getChangedRect(previous, current, outRect);
+    }
 
-                if (playCount > 0) {
-                    //if (enableDebugLog) Log.d(TAG, "numPlays: " + numPlays + " (user defined)");
-                } else {
-                    playCount = ((PngChunkACTL) chunk).getNumPlays();
-                    //if (enableDebugLog) Log.d(TAG, "numPlays: " + numPlays + " (media info)");
-                }
-            } else if (chunk instanceof PngChunkFCTL) {
-                fctlArrayList.add((PngChunkFCTL) chunk);
-
-                // 计算最大需要的缓存大小
-                PngChunkFCTL calculateChunk = (PngChunkFCTL) chunk;
-                int calculateIndex = fctlArrayList.size() - 1;
-                int calculateMaxCacheSize = 1;
-                while (calculateChunk.getDisposeOp() == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS && calculateIndex > 0) {
-                    calculateIndex--;
-                    calculateMaxCacheSize++;
-                    calculateChunk = fctlArrayList.get(calculateIndex);
-                }
-                maxCacheSize = Math.max(maxCacheSize, calculateMaxCacheSize);
+    // 解码一帧并合成到画布上, restart为true时先清空画布(从关键帧开始合成)
+    private void composePixels(int frameIndex, boolean restart) {
+        if (restart || frameIndex == 0) {
+            compositor.reset();
+            frameOutput.invalidate(0, 0, compositor.getWidth(), compositor.getHeight());
+        }
+        composedIndex = frameIndex;
+
+        if (frameSource instanceof ApngDirectFrameSource) {
+            // 直接解压到帧像素buffer, 不经过bitmap
+            int width = getFrameWidth(frameIndex);
+            int height = getFrameHeight(frameIndex);
+            if (framePixels.length < width * height) {
+                framePixels = new int[width * height];
+            }
+            if (!((ApngDirectFrameSource) frameSource).decodePixels(frameIndex, framePixels, 0, width)) return;
+            composeFramePixels(frameIndex, width, height);
+            return;
+        }
+
+        Bitmap frameBitmap = decodeFrame(frameIndex);
+        if (frameBitmap == null) return;
+
+        int width = Math.min(frameBitmap.getWidth(), getFrameWidth(frameIndex));
+        int height = Math.min(frameBitmap.getHeight(), getFrameHeight(frameIndex));
+        if (framePixels.length < width * height) {
+            framePixels = new int[width * height];
+        }
+        frameBitmap.getPixels(framePixels, 0, width, 0, 0, width, height);
+        apngDrawable.bitmapCache.reuseBitmap(frameBitmap);
+        composeFramePixels(frameIndex, width, height);
+    }
+
+    // 解码一帧(不合成), 复用的bitmap直接按fcTL中的宽高从复用池中取, 不需要再调整大小
+    private Bitmap decodeFrame(int frameIndex) {
+        Bitmap frameBitmap = null;
+        try {
+            Bitmap clipBitmap = apngDrawable.bitmapCache.getReuseBitmap(
+                    getFrameWidth(frameIndex), getFrameHeight(frameIndex));
+            frameBitmap = frameSource.decodeFrame(frameIndex, clipBitmap);
+            if (clipBitmap != frameBitmap) {
+                apngDrawable.bitmapCache.reuseBitmap(clipBitmap);
             }
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
+        }
+        return frameBitmap;
+    }
+
+    // 把framePixels中的一帧合成到画布上
+    private void composeFramePixels(int frameIndex, int width, int height) {
+        compositor.compose(framePixels, 0, width,
+                getFrameX(frameIndex), getFrameY(frameIndex), width, height,
+                apngInfo.getDisposeOp(frameIndex), apngInfo.getBlendOp(frameIndex));
+        frameOutput.invalidate(compositor.getDirtyLeft(), compositor.getDirtyTop(),
+                compositor.getDirtyRight(), compositor.getDirtyBottom());
+    }
+
+    /**
+     * 边下载边播放时, 这一帧是否还没有下载完
+     */
+    boolean isWaitingForFrame(int frameIndex) {
+        ApngFrameSource source = frameSource;
+        return source instanceof ApngDirectFrameSource && ((ApngDirectFrameSource) source).isLoading()
+                && frameIndex >= source.getFrameCount();
+    }
+
+    /**
+     * 边下载边播放时等待这一帧下载完, 下载到新的帧或者下载结束时在下载线程中执行一次listener
+     *
+     * @return 这一帧是否还没有下载完, 为false时可以直接解码, listener仍然可能被执行
+     */
+    boolean waitForFrame(int frameIndex, Runnable listener) {
+        ApngFrameSource source = frameSource;
+        if (!(source instanceof ApngDirectFrameSource)) return false;
+        ((ApngDirectFrameSource) source).setFramesListener(listener);
+        // 注册之后再检查, 避免错过注册之前刚到达的帧
+        return isWaitingForFrame(frameIndex);
+    }
+
+    /**
+     * 这一帧是否存在, 边下载边播放且下载失败时只有已经下载的帧
+     */
+    boolean hasFrame(int frameIndex) {
+        return frameIndex < frameCount && frameIndex < frameSource.getFrameCount();
+    }
+
+    // 初始化的时候读取apng文件块信息
+    private void applyApngInformation(ApngInfo info) {
+        apngInfo = info;
+        frameCount = info.getFrameCount();
+        if (frameSource instanceof ApngDirectFrameSource && ((ApngDirectFrameSource) frameSource).isLoading()) {
+            // 边下载边播放, 先按acTL中声明的帧数播放, 下载结束后以实际的帧数为准(见hasFrame)
+            frameCount = info.numFrames;
+        }
+        frameWidths = new int[frameCount];
+        frameHeights = new int[frameCount];
+        applySampleSize(sampleSize);
+        if (playCount > 0) {
+            //if (enableDebugLog) Log.d(TAG, "numPlays: " + numPlays + " (user defined)");
+        } else {
+            playCount = info.getPlayCount();
+            //if (enableDebugLog) Log.d(TAG, "numPlays: " + numPlays + " (media info)");
         }
 
-        if (apngDrawable != null) apngDrawable.bitmapCache.setMaxCacheSize(maxCacheSize);
+        composedIndex = -1;
+
+        if (apngDrawable != null) {
+            // 完全不透明的动画用RGB_565合成, 边下载边播放时还不知道后面的帧, 按透明处理
+            boolean opaque = info.isOpaque() && !(frameSource instanceof ApngDirectFrameSource
+                    && ((ApngDirectFrameSource) frameSource).isLoading());
+            apngDrawable.bitmapCache.setCanvasConfig(opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+            apngDrawable.setOpaque(opaque);
+            // 合成只依赖上一帧, PREVIOUS只保存区域, 只需要缓存一帧
+            apngDrawable.bitmapCache.setMaxCacheSize(1);
+            apngDrawable.bitmapCache.setAnimationSize(frameCount, canvasWidth, canvasHeight);
+        }
     }
 
     /**
@@ -197,17 +578,18 @@ public class ApngFrameDecode {
             Bitmap frameBitmap, Bitmap baseBitmap) {
 
         Bitmap redrawnBitmap = null;
-        if (baseBitmap != null && baseBitmap.getWidth() == apngDrawable.baseWidth
-                && baseBitmap.getHeight() == apngDrawable.baseHeight
+        if (baseBitmap != null && baseBitmap.getWidth() == canvasWidth
+                && baseBitmap.getHeight() == canvasHeight
+                && baseBitmap.getConfig() == apngDrawable.bitmapCache.getCanvasConfig()
                 && !apngDrawable.bitmapCache.cacheContain(baseBitmap)) {
             redrawnBitmap = baseBitmap;
         } else {
-            redrawnBitmap = apngDrawable.bitmapCache.getReuseBitmap(apngDrawable.baseWidth, apngDrawable.baseHeight);
+            redrawnBitmap = apngDrawable.bitmapCache.getCanvasBitmap(canvasWidth, canvasHeight);
         }
 
         if (redrawnBitmap == null) return baseBitmap;
 
-        Canvas canvas = new Canvas(redrawnBitmap);
+        canvas.setBitmap(redrawnBitmap);
 
         if (baseBitmap != null) {
             if (redrawnBitmap != baseBitmap) {
@@ -215,28 +597,68 @@ public class ApngFrameDecode {
             }
 
             if (blendOp == PngChunkFCTL.APNG_BLEND_OP_SOURCE) {
-                canvas.clipRect(offsetX, offsetY, offsetX + frameBitmap.getWidth(), offsetY + frameBitmap.getHeight());
-                canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                canvas.clipRect(0, 0, apngDrawable.baseWidth, apngDrawable.baseHeight);
+                clearRect(offsetX, offsetY, frameBitmap.getWidth(), frameBitmap.getHeight());
             }
         }
 
         canvas.drawBitmap(frameBitmap, offsetX, offsetY, null);
+        canvas.setBitmap(null);
 
         return redrawnBitmap;
     }
 
+    // 把画布当前bitmap上的一块区域清成透明
+    private void clearRect(int left, int top, int width, int height) {
+        canvas.save();
+        canvas.clipRect(left, top, left + width, top + height);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        canvas.restore();
+    }
+
+    // 保存当前帧即将覆盖的区域, baseBitmap为null时表示透明的画布
+    private void savePreviousRegion(int frameIndex, int x, int y, int width, int height, Bitmap baseBitmap) {
+        previousRegionFrame = -1;
+        ApngBitmapCache bitmapCache = apngDrawable.bitmapCache;
+        if (previousRegion != null && (!bitmapCache.isRetained(previousRegion)
+                || previousRegion.getAllocationByteCount() < width * height * 4)) {
+            // 缓存清空后已经归还到复用池, 或者不够大
+            if (bitmapCache.isRetained(previousRegion)) {
+                bitmapCache.releaseRetainedBitmap(previousRegion);
+            }
+            previousRegion = null;
+        }
+        if (previousRegion == null) {
+            previousRegion = bitmapCache.getReuseBitmap(width, height);
+            if (previousRegion == null) return;
+            bitmapCache.retainBitmap(previousRegion);
+        } else if (previousRegion.getWidth() != width || previousRegion.getHeight() != height) {
+            previousRegion.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        previousRegion.eraseColor(Color.TRANSPARENT);
+        if (baseBitmap != null) {
+            srcRect.set(x, y, x + width, y + height);
+            dstRect.set(0, 0, width, height);
+            canvas.setBitmap(previousRegion);
+            canvas.drawBitmap(baseBitmap, srcRect, dstRect, null);
+            canvas.setBitmap(null);
+        }
+        previousRegionFrame = frameIndex;
+        previousRegionX = x;
+        previousRegionY = y;
+        previousRegionWidth = width;
+        previousRegionHeight = height;
+    }
+
     private Bitmap handleDisposeOperation(int frameIndex) {
-        PngChunkFCTL previousChunk = frameIndex > 0 ? fctlArrayList.get(frameIndex - 1) : null;
-        if (previousChunk == null) return null;
+        if (frameIndex <= 0) return null;
 
         Bitmap bitmap = null;
 
-        byte disposeOp = previousChunk.getDisposeOp();
-        int offsetX = previousChunk.getxOff();
-        int offsetY = previousChunk.getyOff();
+        byte disposeOp = apngInfo.getDisposeOp(frameIndex - 1);
+        int offsetX = getFrameX(frameIndex - 1);
+        int offsetY = getFrameY(frameIndex - 1);
 
-        Canvas tempCanvas;
         Bitmap tempBitmap;
         switch (disposeOp) {
             case PngChunkFCTL.APNG_DISPOSE_OP_NONE:
@@ -254,15 +676,13 @@ public class ApngFrameDecode {
                 if (bitmap == null) break;
 
                 //if (enableDebugLog) Log.d(TAG, "Create a new bitmap");
-                if (bitmap != null && frameWHMap.containsKey(frameIndex - 1)) {
-                    tempBitmap = apngDrawable.bitmapCache.getReuseBitmap(apngDrawable.baseWidth, apngDrawable.baseHeight);
+                if (bitmap != null && frameWidths[frameIndex - 1] > 0) {
+                    tempBitmap = apngDrawable.bitmapCache.getCanvasBitmap(canvasWidth, canvasHeight);
                     if (tempBitmap == null) break;
-                    tempCanvas = new Canvas(tempBitmap);
-                    tempCanvas.drawBitmap(bitmap, 0, 0, null);
-
-                    tempCanvas.clipRect(offsetX, offsetY, offsetX + frameWHMap.get(frameIndex - 1).first, offsetY + frameWHMap.get(frameIndex - 1).second);
-                    tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                    tempCanvas.clipRect(0, 0, apngDrawable.baseWidth, apngDrawable.baseHeight);
+                    canvas.setBitmap(tempBitmap);
+                    canvas.drawBitmap(bitmap, 0, 0, null);
+                    clearRect(offsetX, offsetY, frameWidths[frameIndex - 1], frameHeights[frameIndex - 1]);
+                    canvas.setBitmap(null);
 
                     bitmap = tempBitmap;
                 }
@@ -271,35 +691,27 @@ public class ApngFrameDecode {
             case PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS:
                 //Log.v("tempTest", "APNG_DISPOSE_OP_PREVIOUS for " + frameIndex);
                 // Restore to Previous：绘制下一帧前，把先把画布恢复为当前帧的前一帧
-                if (frameIndex > 1) {
-                    PngChunkFCTL tempPngChunk;
-                    for (int i = frameIndex - 2; i >= 0; i--) {
-                        tempPngChunk = fctlArrayList.get(i);
-                        int tempDisposeOp = tempPngChunk.getDisposeOp();
-                        int tempOffsetX = tempPngChunk.getxOff();
-                        int tempOffsetY = tempPngChunk.getyOff();
-                        if (tempDisposeOp != PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) {
-                            if (tempDisposeOp == PngChunkFCTL.APNG_DISPOSE_OP_NONE) {
-                                bitmap = apngDrawable.bitmapCache.getCacheBitmap(i);
-                            } else if (tempDisposeOp == PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND) {
-                                //if (enableDebugLog) Log.d(TAG, "Create a new bitmap");
-                                bitmap = apngDrawable.bitmapCache.getCacheBitmap(i);
-                                if (bitmap != null && frameWHMap.containsKey(i)) {
-                                    tempBitmap = apngDrawable.bitmapCache.getReuseBitmap(apngDrawable.baseWidth, apngDrawable.baseHeight);
-                                    if (tempBitmap == null) break;
-                                    tempCanvas = new Canvas(tempBitmap);
-                                    tempCanvas.drawBitmap(bitmap, 0, 0, null);
-
-                                    tempCanvas.clipRect(tempOffsetX, tempOffsetY, tempOffsetX + frameWHMap.get(i).first, tempOffsetY + frameWHMap.get(i).second);
-                                    tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                                    tempCanvas.clipRect(0, 0, apngDrawable.baseWidth, apngDrawable.baseHeight);
-
-                                    bitmap = tempBitmap;
-                                }
-                            }
-                            break;
-                        }
-                    }
+                if (previousRegionFrame == frameIndex - 1 && apngDrawable.bitmapCache.isRetained(previousRegion)) {
+                    // 在上一帧上把保存的区域拷回去
+                    bitmap = apngDrawable.bitmapCache.getCacheBitmap(frameIndex - 1);
+                    if (bitmap == null) break;
+                    tempBitmap = apngDrawable.bitmapCache.getCanvasBitmap(canvasWidth, canvasHeight);
+                    if (tempBitmap == null) break;
+                    canvas.setBitmap(tempBitmap);
+                    canvas.drawBitmap(bitmap, 0, 0, null);
+                    clearRect(previousRegionX, previousRegionY, previousRegionWidth, previousRegionHeight);
+                    srcRect.set(0, 0, previousRegionWidth, previousRegionHeight);
+                    dstRect.set(previousRegionX, previousRegionY,
+                            previousRegionX + previousRegionWidth, previousRegionY + previousRegionHeight);
+                    canvas.drawBitmap(previousRegion, srcRect, dstRect, null);
+                    canvas.setBitmap(null);
+                    bitmap = tempBitmap;
+                    break;
+                }
+                // 没有保存区域时(合成不连续), 恢复出的就是上一帧绘制之前的画布: 缓存只保留最近的帧, 更早的帧一般已经不在了,
+                // 从关键帧重新合成出再前一帧, 再按它的dispose_op处理
+                if (frameIndex > 1 && seekFrameBitmap(frameIndex - 2) != null) {
+                    bitmap = handleDisposeOperation(frameIndex - 1);
                 }
                 break;
         }
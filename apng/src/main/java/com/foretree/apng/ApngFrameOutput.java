@@ -0,0 +1,163 @@
+package com.foretree.apng;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * PIXELS合成方式的输出bitmap
+ * <p>
+ * 解码器长期持有几张输出bitmap轮流使用(正在显示或者等待显示的不能写), 每张bitmap记录自己与画布不一致的区域,
+ * 画布每改动一块区域就累加到所有bitmap上; 输出时只把这张bitmap过期的区域用setPixels同步过去,
+ * 而不是每帧上传整个画布
+ * <p>
+ * 同时记录每次输出相对于上一次输出变化的区域, 供{@link ApngDrawable#getDirtyBounds()}只刷新变化的部分
+ */
+class ApngFrameOutput {
+
+    private Bitmap[] bitmaps = new Bitmap[4];
+    private int[] staleRects = new int[16];   // 每张bitmap与画布不一致的区域, 依次为left, top, right, bottom
+    private int[] changedRects = new int[16]; // 每张bitmap相对于上一次输出变化的区域
+    private long[] sequences = new long[4];   // 每张bitmap是第几次输出
+    private int count = 0;
+    private long sequence = 0;
+
+    // 上一次输出之后画布变化的区域
+    private int changedLeft;
+    private int changedTop;
+    private int changedRight;
+    private int changedBottom;
+
+    /**
+     * 画布上一块区域发生了变化
+     */
+    synchronized void invalidate(int left, int top, int right, int bottom) {
+        if (right <= left || bottom <= top) return;
+        for (int i = 0; i < count; i++) {
+            union(staleRects, i * 4, left, top, right, bottom);
+        }
+        if (changedRight <= changedLeft || changedBottom <= changedTop) {
+            changedLeft = left;
+            changedTop = top;
+            changedRight = right;
+            changedBottom = bottom;
+        } else {
+            changedLeft = Math.min(changedLeft, left);
+            changedTop = Math.min(changedTop, top);
+            changedRight = Math.max(changedRight, right);
+            changedBottom = Math.max(changedBottom, bottom);
+        }
+    }
+
+    /**
+     * 取一张没有在使用的bitmap, 把画布同步过去
+     *
+     * @param bitmapCache 用来判断bitmap是否正在显示, 以及获取新的bitmap
+     * @param pixels      画布
+     * @param width       画布的宽
+     * @param height      画布的高
+     * @return 与画布内容一致的bitmap, 内存不足时返回null
+     */
+    synchronized Bitmap output(ApngBitmapCache bitmapCache, int[] pixels, int width, int height) {
+        int index = -1;
+        int i = 0;
+        while (i < count) {
+            Bitmap bitmap = bitmaps[i];
+            if (!bitmapCache.isRetained(bitmap) || bitmap.getWidth() != width || bitmap.getHeight() != height
+                    || bitmap.getConfig() != bitmapCache.getCanvasConfig()) {
+                // 缓存清空后已经归还到复用池, 或者画布已经改变, 不能再使用
+                remove(i);
+                continue;
+            }
+            if (index < 0 && !bitmapCache.isPinned(bitmap)) {
+                index = i;
+            }
+            i++;
+        }
+
+        if (index < 0) {
+            Bitmap bitmap = bitmapCache.getCanvasBitmap(width, height);
+            if (bitmap == null) return null;
+            bitmapCache.retainBitmap(bitmap);
+            index = add(bitmap);
+            set(staleRects, index * 4, 0, 0, width, height);
+        }
+
+        Bitmap bitmap = bitmaps[index];
+        int offset = index * 4;
+        int left = staleRects[offset];
+        int top = staleRects[offset + 1];
+        int right = staleRects[offset + 2];
+        int bottom = staleRects[offset + 3];
+        if (right > left && bottom > top) {
+            bitmap.setPixels(pixels, top * width + left, width, left, top, right - left, bottom - top);
+        }
+        set(staleRects, offset, 0, 0, 0, 0);
+
+        set(changedRects, offset, changedLeft, changedTop, changedRight, changedBottom);
+        changedLeft = changedTop = changedRight = changedBottom = 0;
+        sequences[index] = ++sequence;
+        return bitmap;
+    }
+
+    /**
+     * 取得从previous切换到current时变化的区域, 两者不是相邻的两次输出时返回false
+     */
+    synchronized boolean getChangedRect(Bitmap previous, Bitmap current, Rect outRect) {
+        int previousIndex = indexOf(previous);
+        int currentIndex = indexOf(current);
+        if (previousIndex < 0 || currentIndex < 0 || sequences[currentIndex] != sequences[previousIndex] + 1) {
+            return false;
+        }
+        int offset = currentIndex * 4;
+        outRect.set(changedRects[offset], changedRects[offset + 1], changedRects[offset + 2], changedRects[offset + 3]);
+        return true;
+    }
+
+    private int indexOf(Bitmap bitmap) {
+        if (bitmap == null) return -1;
+        for (int i = 0; i < count; i++) {
+            if (bitmaps[i] == bitmap) return i;
+        }
+        return -1;
+    }
+
+    private int add(Bitmap bitmap) {
+        if (count == bitmaps.length) {
+            int size = count * 2;
+            bitmaps = Arrays.copyOf(bitmaps, size);
+            staleRects = Arrays.copyOf(staleRects, size * 4);
+            changedRects = Arrays.copyOf(changedRects, size * 4);
+            sequences = Arrays.copyOf(sequences, size);
+        }
+        bitmaps[count] = bitmap;
+        sequences[count] = 0;
+        return count++;
+    }
+
+    private void remove(int index) {
+        int last = --count;
+        bitmaps[index] = bitmaps[last];
+        System.arraycopy(staleRects, last * 4, staleRects, index * 4, 4);
+        System.arraycopy(changedRects, last * 4, changedRects, index * 4, 4);
+        sequences[index] = sequences[last];
+        bitmaps[last] = null;
+    }
+
+    private static void set(int[] rects, int offset, int left, int top, int right, int bottom) {
+        rects[offset] = left;
+        rects[offset + 1] = top;
+        rects[offset + 2] = right;
+        rects[offset + 3] = bottom;
+    }
+
+    private static void union(int[] rects, int offset, int left, int top, int right, int bottom) {
+        if (rects[offset + 2] <= rects[offset] || rects[offset + 3] <= rects[offset + 1]) {
+            set(rects, offset, left, top, right, bottom);
+        } else {
+            set(rects, offset, Math.min(rects[offset], left), Math.min(rects[offset + 1], top),
+                    Math.max(rects[offset + 2], right), Math.max(rects[offset + 3], bottom));
+        }
+    }
+}
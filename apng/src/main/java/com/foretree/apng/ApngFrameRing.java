@@ -0,0 +1,79 @@
+package com.foretree.apng;
+
+import android.graphics.Bitmap;
+
+/**
+ * 预解码帧的环形队列
+ * <p>
+ * 解码线程提前合成后面的K帧放入队列, 渲染时直接取出已经合成好的帧显示, 解码的抖动不会直接表现为卡顿;
+ * 队列满时停止预解码, 等渲染取走一帧之后再继续
+ * <p>
+ * 队列中的帧都是连续的, 只在同一个drawable的解码任务中访问(任务之间互斥), 不需要额外同步
+ */
+class ApngFrameRing {
+
+    private Bitmap[] bitmaps;
+    private int[] frameIndices;
+    private int head = 0;
+    private int size = 0;
+
+    ApngFrameRing(int capacity) {
+        bitmaps = new Bitmap[capacity];
+        frameIndices = new int[capacity];
+    }
+
+    int capacity() {
+        return bitmaps.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isFull() {
+        return size == bitmaps.length;
+    }
+
+    /**
+     * 放入一帧合成好的图片, 队列满时返回false
+     */
+    boolean offer(int frameIndex, Bitmap bitmap) {
+        if (isFull()) return false;
+        int tail = (head + size) % bitmaps.length;
+        bitmaps[tail] = bitmap;
+        frameIndices[tail] = frameIndex;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return 队首的帧序号, 队列为空时返回-1
+     */
+    int peekFrameIndex() {
+        return size == 0 ? -1 : frameIndices[head];
+    }
+
+    /**
+     * 取出队首的图片
+     */
+    Bitmap poll() {
+        if (size == 0) return null;
+        Bitmap bitmap = bitmaps[head];
+        bitmaps[head] = null;
+        head = (head + 1) % bitmaps.length;
+        size--;
+        return bitmap;
+    }
+
+    void clear() {
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,37 @@
+package com.foretree.apng;
+
+import android.graphics.Bitmap;
+
+/**
+ * apng拆帧后每帧png数据的来源, 由{@link ApngExtractFrames}在拆帧时生成
+ * <p>
+ * 解码器只通过这个接口读取帧数据, 不关心帧数据是放在独立的小文件里还是内存里
+ */
+public interface ApngFrameSource {
+
+    /**
+     * 解码指定帧
+     *
+     * @param frameIndex  帧序号
+     * @param reuseBitmap 可复用的bitmap, 可以为null
+     * @return 解码后的帧图片, 失败时返回null
+     */
+    Bitmap decodeFrame(int frameIndex, Bitmap reuseBitmap);
+
+    /**
+     * 设置之后解码的缩小倍数, 解码出的帧宽高为{@link ApngImageUtils#getSampledSize(int, int)}
+     *
+     * @param sampleSize 缩小倍数, 1表示按原始大小解码
+     */
+    void setSampleSize(int sampleSize);
+
+    /**
+     * @return 拆出的帧数
+     */
+    int getFrameCount();
+
+    /**
+     * 播放结束后释放帧数据占用的资源
+     */
+    void release();
+}
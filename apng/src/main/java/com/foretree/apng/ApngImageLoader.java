@@ -8,23 +8,75 @@ import android.os.Handler;
 import android.os.Looper;
 import android.widget.ImageView;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 图片加载器
+ * <p>
+ * 加载分为三步, 分别在独立的线程池中执行, 一个慢的网络请求不会阻塞其他图片的加载:
+ * 1. 获取文件: 网络图片在网络线程中下载, assets和本地文件在磁盘线程中拷贝到缓存目录
+ * 2. 解析拆帧: 在磁盘线程中进行
+ * 3. 创建drawable: 在解码线程中解码第一帧并创建drawable, 然后回到ui线程显示
+ * <p>
+ * 同一个uri同时只有一个加载任务, 加载过程中对同一个uri的请求都加入这个任务, 完成后分别通知每个ImageView和监听;
+ * 每个ImageView使用独立的drawable, 下载、拷贝和解析只进行一次, 内存中拆出的帧数据也由这些drawable共用
+ * <p>
+ * 每个ImageView只保留最后一次请求: 列表中的ImageView被复用并请求新的uri时, 之前的请求被取消, 结果不会再显示到这个ImageView上;
+ * 一个加载任务的所有请求都取消后, 任务在下一步(下载过程中为下一段数据)开始前停止. ImageView已经在显示同一个uri时不再加载
  */
 public class ApngImageLoader {
+
+    /**
+     * 下载网络图片的线程数, 需要在第一次加载之前设置
+     */
+    public static int NETWORK_THREAD_COUNT = 3;
+
+    /**
+     * 拷贝和解析文件的线程数, 需要在第一次加载之前设置
+     */
+    public static int DISK_THREAD_COUNT = 2;
+
+    /**
+     * 解码第一帧和创建drawable的线程数, 需要在第一次加载之前设置
+     */
+    public static int DECODE_THREAD_COUNT = 2;
+
     private static ApngImageLoader mInstance;
     private Context mContext;
     private Handler mHandler;
-    private ScheduledThreadPoolExecutor mExcutor;
+    private ThreadPoolExecutor mNetworkExecutor;
+    private ThreadPoolExecutor mDiskExecutor;
+    private ThreadPoolExecutor mDecodeExecutor;
+    private final Map<String, LoadJob> mLoadingJobs = new HashMap<>(); // 正在加载的uri, 同时作为以下字段的锁
+    private final Map<ImageView, Target> mRequests = new WeakHashMap<>(); // 每个ImageView最后一次的请求
 
     private ApngImageLoader() {
         mHandler = new Handler(Looper.getMainLooper());
-        mExcutor = new ScheduledThreadPoolExecutor(1, new ThreadPoolExecutor.DiscardPolicy());
+        mNetworkExecutor = createExecutor(NETWORK_THREAD_COUNT, "apng-network");
+        mDiskExecutor = createExecutor(DISK_THREAD_COUNT, "apng-disk");
+        mDecodeExecutor = createExecutor(DECODE_THREAD_COUNT, "apng-load");
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threadCount, String name) {
+        threadCount = Math.max(threadCount, 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ApngRenderScheduler.RenderThreadFactory(name),
+                new ThreadPoolExecutor.DiscardPolicy());
+        // 没有加载任务时回收空闲线程
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     public static ApngImageLoader getInstance(Context context) {
@@ -33,6 +85,8 @@ public class ApngImageLoader {
                 if (mInstance == null) {
                     mInstance = new ApngImageLoader();
                     mInstance.mContext = context;
+                    // 系统内存紧张时收缩共享的bitmap复用池
+                    context.getApplicationContext().registerComponentCallbacks(ApngBitmapPool.getInstance());
                 }
             }
         }
@@ -44,51 +98,285 @@ public class ApngImageLoader {
     }
 
     public void loadImage(final String uri, final ImageView imageView, final ILoadingListener listener) {
-        mInstance.mExcutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                ApngImageUtils.Scheme urlType = ApngImageUtils.Scheme.ofUri(uri);
-                Bitmap decodeBitmap = null;
-                switch (urlType) {
-                    case FILE:
-                        decodeBitmap = ApngImageUtils.decodeFileToDrawable(uri, null);
-                        break;
-                    case ASSETS:
-                        String filePath = ApngImageUtils.Scheme.ASSETS.crop(uri);
-                        try {
-                            InputStream inputStream = mInstance.mContext.getAssets().open(filePath);
-                            decodeBitmap = BitmapFactory.decodeStream(inputStream);
-                        } catch (IOException | OutOfMemoryError e) {
-                            e.printStackTrace();
-                        }
-                        break;
+        Drawable shownDrawable = null;
+        LoadJob newJob = null;
+        synchronized (mLoadingJobs) {
+            Target current = mRequests.get(imageView);
+            if (current != null && current.uri.equals(uri) && !current.cancelled) {
+                if (current.drawable == null) {
+                    // 同一个uri正在加载, 只更新监听
+                    current.listener = listener;
+                    return;
                 }
+                if (current.drawable == imageView.getDrawable()) {
+                    shownDrawable = current.drawable;
+                }
+            }
+            if (shownDrawable == null) {
+                if (current != null) {
+                    cancel(current);
+                }
+                Target target = new Target(uri, imageView, listener);
+                mRequests.put(imageView, target);
+                LoadJob job = mLoadingJobs.get(uri);
+                if (job == null) {
+                    job = newJob = new LoadJob(uri);
+                    mLoadingJobs.put(uri, job);
+                }
+                target.job = job;
+                job.targets.add(target);
+            }
+        }
+        if (shownDrawable != null) {
+            // 已经在显示这个uri, 不需要重新加载
+            if (shownDrawable instanceof ApngDrawable && !((ApngDrawable) shownDrawable).isRunning()) {
+                ((ApngDrawable) shownDrawable).start();
+            }
+            if (listener != null)
+                listener.onLoadingComplete(uri, imageView, shownDrawable);
+            return;
+        }
+        if (newJob != null) {
+            newJob.start();
+        }
+    }
 
-                // 将结果通知ui业务层
-                final Drawable finalDrawable = ApngImageUtils.bitmapToDrawable(mInstance.mContext, uri, imageView, decodeBitmap);
-                mInstance.mHandler.post(new Runnable() {
+    /**
+     * 取消ImageView还没有完成的加载, 比如列表项被回收时
+     */
+    public void cancel(ImageView imageView) {
+        synchronized (mLoadingJobs) {
+            Target current = mRequests.remove(imageView);
+            if (current != null) {
+                cancel(current);
+            }
+        }
+    }
+
+    // 取消一个请求, 加载任务没有其他请求时一起取消, 需要持有mLoadingJobs的锁
+    private void cancel(Target target) {
+        target.cancelled = true;
+        LoadJob job = target.job;
+        if (job == null) return;
+        job.targets.remove(target);
+        if (job.targets.isEmpty() && mLoadingJobs.get(job.uri) == job) {
+            job.cancelled.set(true);
+            mLoadingJobs.remove(job.uri);
+        }
+    }
+
+    /**
+     * 等待加载结果的ImageView和监听
+     */
+    private static class Target {
+        final String uri;
+        final WeakReference<ImageView> imageView; // 不能强引用, 否则mRequests中的ImageView永远不会被回收
+        volatile ILoadingListener listener;
+        volatile boolean cancelled = false;
+        LoadJob job;       // 受mLoadingJobs保护
+        Drawable drawable; // 已经显示的结果, 受mLoadingJobs保护
+
+        Target(String uri, ImageView imageView, ILoadingListener listener) {
+            this.uri = uri;
+            this.imageView = new WeakReference<>(imageView);
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * 一个uri的加载任务, 依次经过获取文件、解析拆帧、创建drawable三步
+     */
+    private class LoadJob {
+        final String uri;
+        final ApngImageUtils.Scheme scheme;
+        final List<Target> targets = new ArrayList<>(); // 受mLoadingJobs保护
+        final AtomicBoolean cancelled = new AtomicBoolean(false); // 所有请求都已经取消
+
+        File cacheFile;                       // 缓存目录中的文件
+        ApngExtractFrames.LoadResult result;  // 缓存文件的解析结果, 给第一个ImageView使用
+
+        LoadJob(String uri) {
+            this.uri = uri;
+            scheme = ApngImageUtils.Scheme.ofUri(uri);
+        }
+
+        void start() {
+            ThreadPoolExecutor executor = scheme == ApngImageUtils.Scheme.UNKNOWN ? mNetworkExecutor : mDiskExecutor;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch();
+                }
+            });
+        }
+
+        // 把文件放入缓存目录, 网络图片在网络线程中执行, 其他在磁盘线程中执行
+        private void fetch() {
+            if (cancelled.get()) return;
+            if (ApngImageUtils.STREAMING_PLAYBACK && scheme == ApngImageUtils.Scheme.UNKNOWN) {
+                String cachePath = ApngImageUtils.getFileCachePath(mContext, uri);
+                File streamFile = cachePath != null ? new File(cachePath) : null;
+                if (streamFile != null && !streamFile.exists()) {
+                    // 边下载边播放, 第一帧下载完就可以创建drawable
+                    result = ApngStreamLoader.load(uri, streamFile, cancelled);
+                    if (cancelled.get()) {
+                        // 返回之后才取消时已经拿到了帧数据来源, 不释放的话下载会一直进行到结束
+                        if (result != null && result.frameSource != null) result.frameSource.release();
+                        result = null;
+                        return;
+                    }
+                    if (result != null) {
+                        cacheFile = streamFile;
+                        mDecodeExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                deliver();
+                            }
+                        });
+                        return;
+                    }
+                }
+            }
+            cacheFile = ApngImageUtils.processApngFile(mContext, uri, cancelled);
+            if (cacheFile == null) return;
+            if (scheme == ApngImageUtils.Scheme.UNKNOWN) {
+                mDiskExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        if (finalDrawable != null) {
-                            Drawable oldDrawable = imageView.getDrawable();
-                            if (oldDrawable != finalDrawable && oldDrawable != null && oldDrawable instanceof ApngDrawable) {
-                                ((ApngDrawable) oldDrawable).stop();
-                            }
-                            imageView.setImageDrawable(finalDrawable);
-                            if (listener != null)
-                                listener.onLoadingComplete(uri, imageView, finalDrawable);
-                            if (finalDrawable instanceof ApngDrawable) {
-                                ApngDrawable apngDrawable = (ApngDrawable) finalDrawable;
-                                apngDrawable.setNumPlays(0);
-                                apngDrawable.start();
-                            }
-                        } else {
-                            if (listener != null)
-                                listener.onLoadFailed(uri, imageView);
-                        }
+                        extract();
                     }
                 });
+            } else {
+                extract();
+            }
+        }
+
+        // 解析拆帧, 在磁盘线程中执行
+        private void extract() {
+            if (cancelled.get()) return;
+            if (cacheFile.exists()) {
+                try {
+                    result = ApngExtractFrames.load(cacheFile, ApngFrameDecode.DEFAULT_EXTRACT_MODE);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            mDecodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        // 为每个ImageView创建drawable并通知, 在解码线程中执行
+        private void deliver() {
+            List<Target> waitingTargets;
+            synchronized (mLoadingJobs) {
+                // 之后的请求重新加载, 此时文件和解析结果都已经缓存
+                if (mLoadingJobs.get(uri) == this) {
+                    mLoadingJobs.remove(uri);
+                }
+                waitingTargets = new ArrayList<>(targets);
+            }
+            boolean resultUsed = false;
+            for (Target target : waitingTargets) {
+                ImageView imageView = target.imageView.get();
+                if (target.cancelled || imageView == null) continue;
+                Bitmap decodeBitmap = decodeBitmap(uri, scheme);
+                Drawable drawable;
+                if (!resultUsed) {
+                    // 解析结果给第一个没有取消的ImageView使用
+                    ApngDrawable apngDrawable = ApngImageUtils.toApngDrawable(mContext, cacheFile,
+                            imageView.getScaleType(), decodeBitmap, result);
+                    drawable = ApngImageUtils.toDrawable(mContext, apngDrawable, decodeBitmap);
+                    resultUsed = true;
+                } else {
+                    // 内存中拆出的帧可以共用同一份数据; 其他方式的帧数据不能共用, 每个drawable单独打开, 解析结果已经缓存
+                    ApngMemoryFrameSource sharedSource = result != null && result.frameSource instanceof ApngMemoryFrameSource
+                            ? ((ApngMemoryFrameSource) result.frameSource).share() : null;
+                    if (sharedSource != null) {
+                        ApngDrawable apngDrawable = ApngImageUtils.toApngDrawable(mContext, cacheFile,
+                                imageView.getScaleType(), decodeBitmap, new ApngExtractFrames.LoadResult(result.info, sharedSource));
+                        drawable = ApngImageUtils.toDrawable(mContext, apngDrawable, decodeBitmap);
+                    } else {
+                        drawable = ApngImageUtils.bitmapToDrawable(mContext, uri, imageView, decodeBitmap);
+                    }
+                }
+                notifyTarget(target, drawable);
+            }
+            if (!resultUsed && result != null && result.frameSource != null) {
+                // 所有请求都已经取消
+                result.frameSource.release();
+            }
+            result = null;
+        }
+    }
+
+    // 解码静态图片, 同时作为apng开始播放之前显示的第一帧, 每个drawable使用单独的bitmap
+    private Bitmap decodeBitmap(String uri, ApngImageUtils.Scheme scheme) {
+        Bitmap decodeBitmap = null;
+        switch (scheme) {
+            case FILE:
+                decodeBitmap = ApngImageUtils.decodeFileToDrawable(uri, null);
+                break;
+            case ASSETS:
+                String filePath = ApngImageUtils.Scheme.ASSETS.crop(uri);
+                try {
+                    InputStream inputStream = mContext.getAssets().open(filePath);
+                    decodeBitmap = BitmapFactory.decodeStream(inputStream);
+                } catch (IOException | OutOfMemoryError e) {
+                    e.printStackTrace();
+                }
+                break;
+        }
+        return decodeBitmap;
+    }
+
+    // 将结果通知ui业务层, ImageView已经请求了其他uri或者已经被回收时丢弃结果
+    private void notifyTarget(final Target target, final Drawable finalDrawable) {
+        final String uri = target.uri;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ImageView imageView = target.imageView.get();
+                synchronized (mLoadingJobs) {
+                    if (target.cancelled || imageView == null || mRequests.get(imageView) != target) {
+                        discard(finalDrawable);
+                        return;
+                    }
+                    target.job = null;
+                    target.drawable = finalDrawable;
+                }
+                ILoadingListener listener = target.listener;
+                if (finalDrawable != null) {
+                    Drawable oldDrawable = imageView.getDrawable();
+                    if (oldDrawable != finalDrawable && oldDrawable != null && oldDrawable instanceof ApngDrawable) {
+                        ((ApngDrawable) oldDrawable).stop();
+                    }
+                    imageView.setImageDrawable(finalDrawable);
+                    if (listener != null)
+                        listener.onLoadingComplete(uri, imageView, finalDrawable);
+                    if (finalDrawable instanceof ApngDrawable) {
+                        ApngDrawable apngDrawable = (ApngDrawable) finalDrawable;
+                        apngDrawable.setNumPlays(0);
+                        apngDrawable.start();
+                    }
+                } else {
+                    mRequests.remove(imageView);
+                    if (listener != null)
+                        listener.onLoadFailed(uri, imageView);
+                }
             }
         });
     }
+
+    // 丢弃没有显示的drawable, 释放帧数据和第一帧
+    private static void discard(Drawable drawable) {
+        if (drawable instanceof ApngDrawable) {
+            ApngDrawable apngDrawable = (ApngDrawable) drawable;
+            apngDrawable.frameDecode.release();
+            apngDrawable.bitmapCache.clear();
+        }
+    }
 }
@@ -11,13 +11,16 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.widget.ImageView;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by xiejing on 17/2/14.
@@ -27,6 +30,12 @@ public class ApngImageUtils {
 
     public static int DECODE_MEMORY_RETRY_COUNT = 3;
 
+    /**
+     * 网络图片是否边下载边播放, 开启后每帧下载完就可以显示, 不需要等整个文件下载完,
+     * 下载的数据同时保存到缓存文件中, 见{@link ApngStreamLoader}
+     */
+    public static boolean STREAMING_PLAYBACK = false;
+
     public enum Scheme {
         FILE("file"), ASSETS("assets"), DRAWABLE("drawable"), UNKNOWN("");
 
@@ -81,6 +90,13 @@ public class ApngImageUtils {
 
     public static Drawable bitmapToDrawable(Context context, String imageUri, ImageView view, Bitmap loadedBitmap) {
         ApngDrawable apngDrawable = ApngImageUtils.translateToApng(context, imageUri, view.getScaleType(), loadedBitmap);
+        return toDrawable(context, apngDrawable, loadedBitmap);
+    }
+
+    /**
+     * apng不为null时使用apng, 否则使用静态图片
+     */
+    static Drawable toDrawable(Context context, ApngDrawable apngDrawable, Bitmap loadedBitmap) {
         if (apngDrawable != null) {
             apngDrawable.decodePrepare();
             return apngDrawable;
@@ -92,14 +108,43 @@ public class ApngImageUtils {
     }
 
     public static ApngDrawable translateToApng(Context context, String imageUri, ImageView.ScaleType scaleType, Bitmap loadedBitmap) {
-        boolean isApng = false;
+        if (STREAMING_PLAYBACK && Scheme.ofUri(imageUri) == Scheme.UNKNOWN) {
+            String cachePath = getFileCachePath(context, imageUri);
+            File streamFile = cachePath != null ? new File(cachePath) : null;
+            if (streamFile != null && !streamFile.exists()) {
+                // 边下载边播放, 第一帧下载完就返回; 不能边下载边播放时已经下载结束, 按普通的缓存文件处理
+                ApngExtractFrames.LoadResult result = ApngStreamLoader.load(imageUri, streamFile);
+                if (result != null) {
+                    return toApngDrawable(context, streamFile, scaleType, loadedBitmap, result);
+                }
+            }
+        }
         //将apng文件放入file cache 目录中
         File cacheFile = processApngFile(context, imageUri);
-        if (cacheFile != null && cacheFile.exists()) {
-            isApng = ApngDrawable.isApng(cacheFile);
+        if (cacheFile == null || !cacheFile.exists()) {
+            return null;
+        }
+        // 只扫描一次文件, 同时完成apng判断、拆帧和块信息的读取, 之前解析过的文件直接使用缓存或保存的结果
+        ApngExtractFrames.LoadResult result = null;
+        try {
+            result = ApngExtractFrames.load(cacheFile, ApngFrameDecode.DEFAULT_EXTRACT_MODE);
+        } catch (Exception e) {
+            e.printStackTrace();
         }
-        if (isApng) {
-            ApngDrawable drawable = new ApngDrawable(context, loadedBitmap, Uri.fromFile(cacheFile), scaleType);
+        return toApngDrawable(context, cacheFile, scaleType, loadedBitmap, result);
+    }
+
+    /**
+     * 用已经解析好的结果创建apng, 不是apng时返回null
+     *
+     * @param apngFile 缓存目录中的apng文件
+     * @param result   apng文件的解析结果, 可以为null
+     */
+    static ApngDrawable toApngDrawable(Context context, File apngFile, ImageView.ScaleType scaleType, Bitmap loadedBitmap,
+                                       ApngExtractFrames.LoadResult result) {
+        if (result != null && result.frameSource != null && result.info.isApng()) {
+            ApngDrawable drawable = new ApngDrawable(context, loadedBitmap, Uri.fromFile(apngFile), scaleType, result.info);
+            drawable.frameDecode.prepare(apngFile, result.info, result.frameSource);
             return drawable;
         }
         return null;
@@ -112,24 +157,40 @@ public class ApngImageUtils {
      * @return
      */
     protected static File processApngFile(Context context, final String imageUri) {
+        return processApngFile(context, imageUri, null);
+    }
+
+    /**
+     * 把apng文件拷贝到图片缓存目录, 先写入临时文件, 完整后再重命名为缓存文件, 失败或者取消时不会留下不完整的缓存文件
+     *
+     * @param cancelled 不为null时每拷贝一段数据检查一次, 取消后停止拷贝
+     * @return 缓存文件, 取消时返回null
+     */
+    static File processApngFile(Context context, final String imageUri, AtomicBoolean cancelled) {
         File cacheFile = new File(getFileCachePath(context, imageUri));
         if (!cacheFile.exists()) {
             Scheme scheme = Scheme.ofUri(imageUri);
+            File tempFile = null;
             try {
+                InputStream input;
                 if (scheme == Scheme.ASSETS) {
                     // asset资源
-                    InputStream input = getStreamFromAssets(context, imageUri);
-                    copyInputStreamToFile(input, cacheFile);
+                    input = getStreamFromAssets(context, imageUri);
                 } else {
                     URL source = new URL(imageUri);
-                    InputStream input = source.openStream();
-                    copyInputStreamToFile(input, cacheFile);
-
+                    input = source.openStream();
+                }
+                tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+                if (copyInputStreamToFile(input, tempFile, cancelled) && tempFile.renameTo(cacheFile)) {
+                    tempFile = null;
                 }
             } catch (IOException | NetworkOnMainThreadException e) {
                 e.printStackTrace();
+            } finally {
+                if (tempFile != null) tempFile.delete();
             }
         }
+        if (cancelled != null && cancelled.get()) return null;
         return cacheFile;
     }
 
@@ -140,25 +201,43 @@ public class ApngImageUtils {
      * @param destination
      */
     public static boolean copyInputStreamToFile(InputStream inputStream, File destination) {
+        return copyInputStreamToFile(inputStream, destination, null);
+    }
+
+    /**
+     * 把流数据拷贝到文件里, 拷贝结束或者取消后关闭数据流
+     *
+     * @param cancelled 不为null时每拷贝一段数据检查一次, 取消时返回false
+     */
+    static boolean copyInputStreamToFile(InputStream inputStream, File destination, AtomicBoolean cancelled) {
+        OutputStream outputStream = null;
         try {
-            FileOutputStream outputStream = new FileOutputStream(destination, false);
-            byte bt[] = new byte[1024];
+            outputStream = new FileOutputStream(destination, false);
+            byte bt[] = new byte[8 * 1024];
             int c;
             while ((c = inputStream.read(bt)) > 0) {
+                if (cancelled != null && cancelled.get()) return false;
                 outputStream.write(bt, 0, c); // 将内容写到新文件当中
             }
-            // 关闭数据流
-            outputStream.close();
-            inputStream.close();
             return true;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            closeQuietly(outputStream);
+            closeQuietly(inputStream);
         }
         return false;
     }
 
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Retrieves {@link InputStream} of image by URI (image is located in assets
      * of application).
@@ -280,55 +359,12 @@ public class ApngImageUtils {
             return null;
         }
 
-        // 计算图片大小
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, options);
-        options.inSampleSize = 1;
-
-        // 复用图片
-        if (reuseBitmap != null && !reuseBitmap.isRecycled() && reuseBitmap.isMutable()) {
-            if (!options.inPurgeable) {
-                options.inMutable = true;
-            }
-            int reuseSize = options.outWidth * options.outHeight * 4;
-            if (reuseBitmap != null && reuseBitmap.getAllocationByteCount() >= reuseSize) {
-                if (reuseBitmap.getWidth() != options.outWidth || reuseBitmap.getHeight() != options.outHeight) {
-                    reuseBitmap.reconfigure(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
-                }
-                reuseBitmap.eraseColor(0);
-                options.inBitmap = reuseBitmap;
-            }
-        }
-
-        options.inJustDecodeBounds = false;
-        options.inMutable = true;
         Bitmap decodeBitmap = null;
-        int retryCount = 0;
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(filePath);
-            while (retryCount <= DECODE_MEMORY_RETRY_COUNT) {
-                retryCount++;
-                try {
-                    decodeBitmap = BitmapFactory.decodeFileDescriptor(fis.getFD(), null, options);
-                } catch (OutOfMemoryError e) {
-                    Log.e(ApngDrawable.TAG, "OutOfMemoryError, try to decrease inSampleSize");
-                    options.inSampleSize *= 2;
-                    continue;
-                } catch (IllegalArgumentException e) {
-                    e.printStackTrace();
-                    // 如果是由于inBitmap选项导致的异常, 则把inBitmap选项清除后再重试
-                    if (options.inBitmap != null) {
-                        options.inBitmap = null;
-                        continue;
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                break;
-            }
-        } catch (FileNotFoundException e) {
+            decodeBitmap = decodeFileDescriptor(fis.getFD(), reuseBitmap, new BitmapFactory.Options());
+        } catch (IOException e) {
             e.printStackTrace();
         } finally {
             if (fis != null) {
@@ -342,4 +378,189 @@ public class ApngImageUtils {
         }
         return decodeBitmap;
     }
+
+    /**
+     * 解析已经打开的文件, 解码结束后文件的读取位置不变, 所以同一个文件可以反复解码
+     *
+     * @param fd          文件
+     * @param reuseBitmap 可复用的bitmap
+     * @param options     解码参数, 可以反复使用, 解码前会被重置
+     * @return
+     */
+    static Bitmap decodeFileDescriptor(FileDescriptor fd, Bitmap reuseBitmap, BitmapFactory.Options options) {
+        return decodeFileDescriptor(fd, 0, 0, 1, reuseBitmap, options);
+    }
+
+    /**
+     * 解析已经打开的文件, 已知图片的宽高时(比如帧的宽高来自fcTL)不再读取图片头
+     *
+     * @param width      图片的宽, 不大于0时先读取图片头计算大小
+     * @param height     图片的高
+     * @param sampleSize 缩小倍数, 解码出的宽高见{@link #getSampledSize(int, int)}
+     */
+    static Bitmap decodeFileDescriptor(FileDescriptor fd, int width, int height, int sampleSize,
+                                       Bitmap reuseBitmap, BitmapFactory.Options options) {
+        resetOptions(options);
+        if (width > 0 && height > 0) {
+            options.outWidth = width;
+            options.outHeight = height;
+        } else {
+            // 计算图片大小
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+        options.inSampleSize = Math.max(sampleSize, 1);
+
+        // 复用图片
+        setReuseBitmap(options, reuseBitmap);
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        Bitmap decodeBitmap = null;
+        int retryCount = 0;
+        while (retryCount <= DECODE_MEMORY_RETRY_COUNT) {
+            retryCount++;
+            try {
+                decodeBitmap = BitmapFactory.decodeFileDescriptor(fd, null, options);
+            } catch (OutOfMemoryError e) {
+                Log.e(ApngDrawable.TAG, "OutOfMemoryError, try to decrease inSampleSize");
+                options.inSampleSize *= 2;
+                continue;
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                // 如果是由于inBitmap选项导致的异常, 则把inBitmap选项清除后再重试
+                if (options.inBitmap != null) {
+                    options.inBitmap = null;
+                    continue;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            break;
+        }
+        options.inBitmap = null;
+        return decodeBitmap;
+    }
+
+    /**
+     * 解析内存中的png数据
+     *
+     * @param data        png数据所在的数组
+     * @param offset      png数据在数组中的起始位置
+     * @param length      png数据的长度
+     * @param reuseBitmap 可复用的bitmap
+     * @return
+     */
+    public static Bitmap decodeByteArrayToDrawable(byte[] data, int offset, int length, Bitmap reuseBitmap) {
+        return decodeByteArrayToDrawable(data, offset, length, reuseBitmap, new BitmapFactory.Options());
+    }
+
+    /**
+     * 解析内存中的png数据, 使用传入的解码参数, 逐帧解码时可以反复使用同一个参数对象
+     */
+    static Bitmap decodeByteArrayToDrawable(byte[] data, int offset, int length, Bitmap reuseBitmap,
+                                            BitmapFactory.Options options) {
+        return decodeByteArrayToDrawable(data, offset, length, 0, 0, 1, reuseBitmap, options);
+    }
+
+    /**
+     * 解析内存中的png数据, 已知图片的宽高时(比如帧的宽高来自fcTL)不再读取图片头
+     *
+     * @param width      图片的宽, 不大于0时先读取图片头计算大小
+     * @param height     图片的高
+     * @param sampleSize 缩小倍数, 解码出的宽高见{@link #getSampledSize(int, int)}
+     */
+    static Bitmap decodeByteArrayToDrawable(byte[] data, int offset, int length, int width, int height,
+                                            int sampleSize, Bitmap reuseBitmap, BitmapFactory.Options options) {
+        if (data == null || length <= 0) {
+            return null;
+        }
+
+        resetOptions(options);
+        if (width > 0 && height > 0) {
+            options.outWidth = width;
+            options.outHeight = height;
+        } else {
+            // 计算图片大小
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+        options.inSampleSize = Math.max(sampleSize, 1);
+
+        // 复用图片
+        setReuseBitmap(options, reuseBitmap);
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        Bitmap decodeBitmap = null;
+        int retryCount = 0;
+        while (retryCount <= DECODE_MEMORY_RETRY_COUNT) {
+            retryCount++;
+            try {
+                decodeBitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+            } catch (OutOfMemoryError e) {
+                Log.e(ApngDrawable.TAG, "OutOfMemoryError, try to decrease inSampleSize");
+                options.inSampleSize *= 2;
+                continue;
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                // 如果是由于inBitmap选项导致的异常, 则把inBitmap选项清除后再重试
+                if (options.inBitmap != null) {
+                    options.inBitmap = null;
+                    continue;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            break;
+        }
+        options.inBitmap = null;
+        return decodeBitmap;
+    }
+
+    /**
+     * 创建逐帧解码时反复使用的解码参数, 同时带上解码用的临时缓冲区, 避免每次解码都重新分配
+     */
+    static BitmapFactory.Options createReusableOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = new byte[16 * 1024];
+        return options;
+    }
+
+    // 重置解码参数, 保留临时缓冲区
+    private static void resetOptions(BitmapFactory.Options options) {
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        options.inMutable = false;
+        options.inBitmap = null;
+        options.outWidth = 0;
+        options.outHeight = 0;
+    }
+
+    /**
+     * 按inSampleSize缩小解码后的边长, 与BitmapFactory解码png时一样向下取整, 最小为1
+     */
+    static int getSampledSize(int size, int sampleSize) {
+        if (sampleSize <= 1) return size;
+        return Math.max(size / sampleSize, 1);
+    }
+
+    // 如果复用的bitmap足够大, 则把它设置为解码的inBitmap, options中需要已经有图片的宽高和inSampleSize
+    private static void setReuseBitmap(BitmapFactory.Options options, Bitmap reuseBitmap) {
+        if (reuseBitmap != null && !reuseBitmap.isRecycled() && reuseBitmap.isMutable()) {
+            if (!options.inPurgeable) {
+                options.inMutable = true;
+            }
+            int width = getSampledSize(options.outWidth, options.inSampleSize);
+            int height = getSampledSize(options.outHeight, options.inSampleSize);
+            int reuseSize = width * height * 4;
+            if (reuseBitmap.getAllocationByteCount() >= reuseSize) {
+                if (reuseBitmap.getWidth() != width || reuseBitmap.getHeight() != height) {
+                    reuseBitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                }
+                reuseBitmap.eraseColor(0);
+                options.inBitmap = reuseBitmap;
+            }
+        }
+    }
 }
@@ -0,0 +1,529 @@
+package com.foretree.apng;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.chunks.PngChunkACTL;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+import ar.com.hjg.pngj.chunks.PngChunkPLTE;
+import ar.com.hjg.pngj.chunks.PngChunkTRNS;
+
+/**
+ * apng文件的解析结果
+ * <p>
+ * 在拆帧的同一次扫描中生成(见{@link ApngExtractFrames#process(java.io.File, ApngExtractFrames.ExtractMode, ApngInfo)}),
+ * 包含acTL/fcTL中的播放信息、每帧数据在源文件中的位置, 以及是否为apng的判断结果,
+ * 判断apng、创建drawable以及解码器初始化时都直接使用这份结果, 不再重复解析文件
+ * <p>
+ * 解析结果会保存在apng文件旁边的.meta文件中(见{@link #save(File)}), 再次播放同一个文件时直接读取, 不需要再解析,
+ * 同时在{@link ApngInfoCache}中共享, 解析完成后不应再修改
+ */
+public class ApngInfo {
+
+    private static final int META_MAGIC = 0x41504D54; // APMT
+    private static final int META_VERSION = 3;
+    // 保存的文件中每帧和每个数据块占用的字节数
+    private static final int FRAME_RECORD_BYTES = 4 * 5 + 2 + 4;
+    private static final int CHUNK_RECORD_BYTES = 8 + 4;
+    // 按acTL预先分配帧信息数组的最大帧数, 避免错误的acTL占用大量内存
+    private static final int MAX_PRESIZED_FRAMES = 4096;
+
+    int width;
+    int height;
+    int numFrames;  // acTL中声明的帧数
+    int playCount;
+
+    // IHDR/PLTE/tRNS中的像素格式, 直接解码帧数据时使用(见{@link ApngPixelDecoder})
+    int bitDepth;
+    int colorType;            // png的颜色类型: 0灰度, 2RGB, 3调色板, 4灰度+alpha, 6RGBA
+    boolean interlaced;
+    int[] palette;            // 调色板颜色(ARGB, 已经合并tRNS中的alpha), 没有时为null
+    int transparentColor = -1; // 灰度和RGB图片tRNS指定的透明色(灰度值或者0xRRGGBB), 没有时为-1
+
+    // 每帧fcTL中的信息
+    // 边下载边播放时下载线程扩容数组的同时解码线程在读取: 数组先拷贝再赋值给volatile字段, 读到新数组时也能看到拷贝过来的内容;
+    // 可以解码的帧数更新之后, 这一帧的内容不再变化(见ApngDirectFrameSource)
+    int frameCount; // 实际解析到的fcTL数
+    volatile int[] frameX = new int[8];
+    volatile int[] frameY = new int[8];
+    volatile int[] frameWidth = new int[8];
+    volatile int[] frameHeight = new int[8];
+    volatile int[] frameDelay = new int[8];
+    volatile byte[] disposeOps = new byte[8];
+    volatile byte[] blendOps = new byte[8];
+    volatile int[] keyFrames = new int[8]; // 每帧之前(包括自己)最近的关键帧, 不保存到.meta中, 读取时重新计算
+
+    // 每帧的图像数据(IDAT或者去掉序号后的fdAT)在源文件中的位置, 一帧可以由多个数据块组成
+    volatile int[] frameChunkStart = new int[9]; // 第i帧的数据块为[frameChunkStart[i], frameChunkStart[i+1])
+    volatile long[] chunkOffsets = new long[8];
+    volatile int[] chunkLengths = new int[8];
+    int chunkCount;
+
+    void setImageSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    void setImageHeader(ImageInfo imageInfo, boolean interlaced) {
+        setImageSize(imageInfo.cols, imageInfo.rows);
+        bitDepth = imageInfo.bitDepth;
+        colorType = ApngPixelDecoder.getColorType(imageInfo);
+        this.interlaced = interlaced;
+    }
+
+    void setPalette(PngChunkPLTE plte) {
+        int entries = plte.getNentries();
+        palette = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            palette[i] = 0xFF000000 | plte.getEntry(i);
+        }
+    }
+
+    // tRNS在PLTE之后
+    void setTransparency(PngChunkTRNS trns) {
+        if (colorType == ApngPixelDecoder.COLOR_TYPE_PALETTE) {
+            if (palette == null) return;
+            int[] alphas = trns.getPalletteAlpha();
+            for (int i = 0; i < alphas.length && i < palette.length; i++) {
+                palette[i] = (alphas[i] << 24) | (palette[i] & 0xFFFFFF);
+            }
+        } else if (colorType == ApngPixelDecoder.COLOR_TYPE_GRAY) {
+            transparentColor = trns.getGray();
+        } else if (colorType == ApngPixelDecoder.COLOR_TYPE_RGB) {
+            transparentColor = trns.getRGB888();
+        }
+    }
+
+    void setAnimationControl(PngChunkACTL actl) {
+        numFrames = actl.getNumFrames();
+        playCount = actl.getNumPlays();
+        // acTL在所有fcTL之前, 按声明的帧数一次分配好, 解析过程中不再扩容(帧数明显不合理时仍然按需扩容)
+        if (frameCount == 0 && numFrames > frameX.length && numFrames <= MAX_PRESIZED_FRAMES) {
+            resizeFrames(numFrames);
+        }
+    }
+
+    private void resizeFrames(int size) {
+        frameX = Arrays.copyOf(frameX, size);
+        frameY = Arrays.copyOf(frameY, size);
+        frameWidth = Arrays.copyOf(frameWidth, size);
+        frameHeight = Arrays.copyOf(frameHeight, size);
+        frameDelay = Arrays.copyOf(frameDelay, size);
+        disposeOps = Arrays.copyOf(disposeOps, size);
+        blendOps = Arrays.copyOf(blendOps, size);
+        keyFrames = Arrays.copyOf(keyFrames, size);
+        frameChunkStart = Arrays.copyOf(frameChunkStart, size + 1);
+    }
+
+    void addFrame(PngChunkFCTL fctl) {
+        int index = frameCount;
+        if (index >= frameX.length) {
+            resizeFrames(frameX.length * 2);
+        }
+        frameX[index] = fctl.getxOff();
+        frameY[index] = fctl.getyOff();
+        frameWidth[index] = fctl.getWidth();
+        frameHeight[index] = fctl.getHeight();
+        frameDelay[index] = computeDelay(fctl.getDelayNum(), fctl.getDelayDen());
+        disposeOps[index] = fctl.getDisposeOp();
+        blendOps[index] = fctl.getBlendOp();
+        keyFrames[index] = isKeyFrame(index) ? index : keyFrames[index - 1];
+        frameChunkStart[index] = chunkCount;
+        frameChunkStart[index + 1] = chunkCount;
+        frameCount++;
+    }
+
+    // 合成时不依赖前面帧的帧:
+    // 1. 第0帧
+    // 2. 覆盖整个画布的SOURCE帧, 但dispose_op不能是PREVIOUS, 否则下一帧需要恢复它之前的画布
+    // 3. 前一帧覆盖整个画布并且dispose_op为BACKGROUND, 画布已经清空
+    private boolean isKeyFrame(int index) {
+        if (index == 0) return true;
+        if (coversCanvas(index) && blendOps[index] == PngChunkFCTL.APNG_BLEND_OP_SOURCE
+                && disposeOps[index] != PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) {
+            return true;
+        }
+        return coversCanvas(index - 1) && disposeOps[index - 1] == PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND;
+    }
+
+    private boolean coversCanvas(int index) {
+        return frameX[index] <= 0 && frameY[index] <= 0
+                && frameX[index] + frameWidth[index] >= width && frameY[index] + frameHeight[index] >= height;
+    }
+
+    // 第outer帧的区域是否包含第inner帧的区域
+    private boolean containsFrame(int outer, int inner) {
+        return frameX[outer] <= frameX[inner] && frameY[outer] <= frameY[inner]
+                && frameX[outer] + frameWidth[outer] >= frameX[inner] + frameWidth[inner]
+                && frameY[outer] + frameHeight[outer] >= frameY[inner] + frameHeight[inner];
+    }
+
+    /**
+     * 动画的每一帧合成后是否都完全不透明:
+     * 1. 像素格式没有alpha, 也没有tRNS指定的透明色(调色板的所有颜色都不透明)
+     * 2. 第0帧覆盖整个画布
+     * 3. dispose_op为BACKGROUND的帧清空的区域会被下一帧完全覆盖(第0帧的PREVIOUS等同于BACKGROUND);
+     * 其他帧的PREVIOUS恢复成绘制这一帧之前的画布, 之前清空过的区域会重新出现, 需要再被下一帧覆盖;
+     * 最后一帧之后从第0帧重新合成, 不需要判断
+     * <p>
+     * 满足时所有像素都不透明, blend_op不影响结果; 只根据已经解析的帧判断
+     */
+    public boolean isOpaque() {
+        if (!hasOpaquePixels() || frameCount == 0 || !coversCanvas(0)) return false;
+        // 绘制当前帧之前画布上被清空的区域, 等于这一帧的区域, -1表示没有
+        int clearedFrame = -1;
+        for (int i = 0; i < frameCount; i++) {
+            if (clearedFrame >= 0 && !containsFrame(i, clearedFrame)) return false;
+            byte disposeOp = disposeOps[i];
+            if (disposeOp == PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND
+                    || (i == 0 && disposeOp == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS)) {
+                clearedFrame = i;
+            } else if (disposeOp != PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) {
+                clearedFrame = -1;
+            }
+            // 其他帧的PREVIOUS恢复绘制之前的画布, 清空的区域不变
+        }
+        return true;
+    }
+
+    private boolean hasOpaquePixels() {
+        if (bitDepth == 0) return false; // 没有读取IHDR
+        switch (colorType) {
+            case ApngPixelDecoder.COLOR_TYPE_GRAY:
+            case ApngPixelDecoder.COLOR_TYPE_RGB:
+                return transparentColor == -1;
+            case ApngPixelDecoder.COLOR_TYPE_PALETTE:
+                if (palette == null) return false;
+                for (int color : palette) {
+                    if (color >>> 24 != 0xFF) return false;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 记录当前帧的一个数据块
+    void addFrameData(long offset, int length) {
+        if (frameCount == 0) return;
+        if (chunkCount >= chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+            chunkLengths = Arrays.copyOf(chunkLengths, chunkCount * 2);
+        }
+        chunkOffsets[chunkCount] = offset;
+        chunkLengths[chunkCount] = length;
+        chunkCount++;
+        frameChunkStart[frameCount] = chunkCount;
+    }
+
+    // fcTL中的delay_den为0时按照规范当作100处理
+    static int computeDelay(int delayNum, int delayDen) {
+        if (delayDen == 0) delayDen = 100;
+        return Math.round(delayNum * ApngFrameDecode.DELAY_FACTOR / delayDen);
+    }
+
+    /**
+     * @return 是否为多帧的apng
+     */
+    public boolean isApng() {
+        return numFrames > 1 && frameCount > 1;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 可以播放的帧数
+     */
+    public int getFrameCount() {
+        return Math.min(numFrames, frameCount);
+    }
+
+    public int getPlayCount() {
+        return playCount;
+    }
+
+    public int getFrameX(int frameIndex) {
+        return frameX[frameIndex];
+    }
+
+    public int getFrameY(int frameIndex) {
+        return frameY[frameIndex];
+    }
+
+    public int getFrameWidth(int frameIndex) {
+        return frameWidth[frameIndex];
+    }
+
+    public int getFrameHeight(int frameIndex) {
+        return frameHeight[frameIndex];
+    }
+
+    /**
+     * @return 帧的延迟, 单位毫秒
+     */
+    public int getFrameDelay(int frameIndex) {
+        return frameDelay[frameIndex];
+    }
+
+    public byte getDisposeOp(int frameIndex) {
+        return disposeOps[frameIndex];
+    }
+
+    public byte getBlendOp(int frameIndex) {
+        return blendOps[frameIndex];
+    }
+
+    /**
+     * 取得frameIndex之前(包括自己)最近的关键帧, 关键帧的合成不依赖前面的帧,
+     * 所以跳到frameIndex时只需要从这个关键帧开始合成
+     */
+    public int getKeyFrame(int frameIndex) {
+        return keyFrames[frameIndex];
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public int getColorType() {
+        return colorType;
+    }
+
+    public boolean isInterlaced() {
+        return interlaced;
+    }
+
+    int[] getPalette() {
+        return palette;
+    }
+
+    int getTransparentColor() {
+        return transparentColor;
+    }
+
+    // 第frameIndex帧的数据块为[getFrameChunkStart, getFrameChunkEnd)
+    int getFrameChunkStart(int frameIndex) {
+        return frameChunkStart[frameIndex];
+    }
+
+    int getFrameChunkEnd(int frameIndex) {
+        return frameChunkStart[frameIndex + 1];
+    }
+
+    long getChunkOffset(int chunkIndex) {
+        return chunkOffsets[chunkIndex];
+    }
+
+    int getChunkLength(int chunkIndex) {
+        return chunkLengths[chunkIndex];
+    }
+
+    // 估算占用的内存大小, 用于缓存的容量控制
+    int estimateSize() {
+        return 64 + frameX.length * (4 * 6 + 2 + 4) + chunkOffsets.length * (8 + 4)
+                + (palette != null ? palette.length * 4 : 0);
+    }
+
+    /**
+     * 获取apng文件对应的解析结果文件名
+     */
+    public static String getFileName(File sourceFile) {
+        return sourceFile.getName() + ".meta";
+    }
+
+    /**
+     * 把解析结果保存到apng文件旁边, 先写临时文件再重命名
+     *
+     * @param sourceFile 解析的apng文件
+     * @return 保存是否成功
+     */
+    public boolean save(File sourceFile) {
+        File metaFile = new File(sourceFile.getParent(), getFileName(sourceFile));
+        File tempFile = new File(metaFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile, false)));
+            out.writeInt(META_MAGIC);
+            out.writeInt(META_VERSION);
+            out.writeLong(sourceFile.length());
+            out.writeLong(sourceFile.lastModified());
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(numFrames);
+            out.writeInt(playCount);
+            out.writeInt(bitDepth);
+            out.writeInt(colorType);
+            out.writeBoolean(interlaced);
+            out.writeInt(transparentColor);
+            out.writeInt(palette != null ? palette.length : -1);
+            if (palette != null) {
+                for (int color : palette) {
+                    out.writeInt(color);
+                }
+            }
+            out.writeInt(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                out.writeInt(frameX[i]);
+                out.writeInt(frameY[i]);
+                out.writeInt(frameWidth[i]);
+                out.writeInt(frameHeight[i]);
+                out.writeInt(frameDelay[i]);
+                out.writeByte(disposeOps[i]);
+                out.writeByte(blendOps[i]);
+                out.writeInt(frameChunkStart[i]);
+            }
+            out.writeInt(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                out.writeLong(chunkOffsets[i]);
+                out.writeInt(chunkLengths[i]);
+            }
+            out.close();
+            out = null;
+            if (metaFile.exists()) {
+                metaFile.delete();
+            }
+            return tempFile.renameTo(metaFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        tempFile.delete();
+        return false;
+    }
+
+    /**
+     * 读取apng文件旁边保存的解析结果, 只有在文件长度和修改时间都与保存时一致时才认为有效
+     *
+     * @param sourceFile 解析的apng文件
+     * @return 是否读取成功, 失败时不会修改当前对象
+     */
+    public boolean load(File sourceFile) {
+        File metaFile = new File(sourceFile.getParent(), getFileName(sourceFile));
+        if (!metaFile.exists()) return false;
+        DataInputStream in = null;
+        try {
+            long metaLength = metaFile.length();
+            long sourceLength = sourceFile.length();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile)));
+            if (in.readInt() != META_MAGIC || in.readInt() != META_VERSION) return false;
+            if (in.readLong() != sourceLength || in.readLong() != sourceFile.lastModified()) return false;
+            int width = in.readInt();
+            int height = in.readInt();
+            int numFrames = in.readInt();
+            int playCount = in.readInt();
+            int bitDepth = in.readInt();
+            int colorType = in.readInt();
+            boolean interlaced = in.readBoolean();
+            int transparentColor = in.readInt();
+            int paletteSize = in.readInt();
+            if (paletteSize > 256) return false;
+            int[] palette = null;
+            if (paletteSize >= 0) {
+                palette = new int[paletteSize];
+                for (int i = 0; i < paletteSize; i++) {
+                    palette[i] = in.readInt();
+                }
+            }
+            int frameCount = in.readInt();
+            // 数量超出文件能存放的记录数说明文件已经损坏, 避免按错误的数量分配数组
+            if (frameCount < 0 || frameCount > metaLength / FRAME_RECORD_BYTES) return false;
+            int size = Math.max(frameCount, 1);
+            int[] frameX = new int[size];
+            int[] frameY = new int[size];
+            int[] frameWidth = new int[size];
+            int[] frameHeight = new int[size];
+            int[] frameDelay = new int[size];
+            byte[] disposeOps = new byte[size];
+            byte[] blendOps = new byte[size];
+            int[] frameChunkStart = new int[size + 1];
+            for (int i = 0; i < frameCount; i++) {
+                frameX[i] = in.readInt();
+                frameY[i] = in.readInt();
+                frameWidth[i] = in.readInt();
+                frameHeight[i] = in.readInt();
+                frameDelay[i] = in.readInt();
+                disposeOps[i] = in.readByte();
+                blendOps[i] = in.readByte();
+                frameChunkStart[i] = in.readInt();
+            }
+            int chunkCount = in.readInt();
+            if (chunkCount < 0 || chunkCount > metaLength / CHUNK_RECORD_BYTES) return false;
+            // 每帧的第一个数据块序号不能递减, 也不能超出数据块总数
+            for (int i = 0; i < frameCount; i++) {
+                if (frameChunkStart[i] < (i > 0 ? frameChunkStart[i - 1] : 0) || frameChunkStart[i] > chunkCount) {
+                    return false;
+                }
+            }
+            frameChunkStart[frameCount] = chunkCount;
+            long[] chunkOffsets = new long[Math.max(chunkCount, 1)];
+            int[] chunkLengths = new int[Math.max(chunkCount, 1)];
+            for (int i = 0; i < chunkCount; i++) {
+                chunkOffsets[i] = in.readLong();
+                chunkLengths[i] = in.readInt();
+                // 数据块需要在apng文件的范围内
+                if (chunkOffsets[i] < 0 || chunkLengths[i] < 0 || chunkOffsets[i] + chunkLengths[i] > sourceLength) {
+                    return false;
+                }
+            }
+
+            this.width = width;
+            this.height = height;
+            this.numFrames = numFrames;
+            this.playCount = playCount;
+            this.bitDepth = bitDepth;
+            this.colorType = colorType;
+            this.interlaced = interlaced;
+            this.transparentColor = transparentColor;
+            this.palette = palette;
+            this.frameCount = frameCount;
+            this.frameX = frameX;
+            this.frameY = frameY;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            this.frameDelay = frameDelay;
+            this.disposeOps = disposeOps;
+            this.blendOps = blendOps;
+            this.frameChunkStart = frameChunkStart;
+            this.chunkOffsets = chunkOffsets;
+            this.chunkLengths = chunkLengths;
+            this.chunkCount = chunkCount;
+            keyFrames = new int[size];
+            for (int i = 0; i < frameCount; i++) {
+                keyFrames[i] = isKeyFrame(i) ? i : keyFrames[i - 1];
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return false;
+    }
+}
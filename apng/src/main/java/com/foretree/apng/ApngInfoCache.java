@@ -0,0 +1,67 @@
+package com.foretree.apng;
+
+import android.util.LruCache;
+
+import java.io.File;
+
+/**
+ * 进程内共享的apng解析结果缓存
+ * <p>
+ * 列表中同一个apng通常会被很多个{@link ApngDrawable}同时使用, 解析结果只读, 可以在这些drawable之间共享,
+ * 缓存以文件路径、长度和修改时间作为key, 文件被替换后旧的结果自然失效
+ */
+public class ApngInfoCache {
+
+    /**
+     * 缓存的最大字节数(估算值), 需要在第一次使用缓存之前设置
+     */
+    public static int MAX_CACHE_BYTES = 512 * 1024;
+
+    private static volatile ApngInfoCache mInstance;
+
+    private final LruCache<String, ApngInfo> infoCache;
+
+    private ApngInfoCache(int maxBytes) {
+        infoCache = new LruCache<String, ApngInfo>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, ApngInfo value) {
+                return value.estimateSize();
+            }
+        };
+    }
+
+    public static ApngInfoCache getInstance() {
+        if (mInstance == null) {
+            synchronized (ApngInfoCache.class) {
+                if (mInstance == null) {
+                    mInstance = new ApngInfoCache(MAX_CACHE_BYTES);
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    private static String keyOf(File file) {
+        return file.getPath() + ':' + file.length() + ':' + file.lastModified();
+    }
+
+    /**
+     * 获取文件的解析结果, 没有缓存或者文件已经变化时返回null
+     */
+    public ApngInfo get(File file) {
+        return infoCache.get(keyOf(file));
+    }
+
+    public void put(File file, ApngInfo info) {
+        if (info == null) return;
+        infoCache.put(keyOf(file), info);
+    }
+
+    public void remove(File file) {
+        infoCache.remove(keyOf(file));
+    }
+
+    public void clear() {
+        infoCache.evictAll();
+    }
+}
@@ -21,7 +21,7 @@ public class ApngInvalidationHandler extends Handler {
     public void handleMessage(Message msg) {
         final ApngDrawable apngDrawable = mDrawableRef.get();
         if (apngDrawable != null) {
-            apngDrawable.invalidateSelf();
+            apngDrawable.invalidateFrame();
         }
     }
 }
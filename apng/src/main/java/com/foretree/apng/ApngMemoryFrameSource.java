@@ -0,0 +1,69 @@
+package com.foretree.apng;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * 内存中的帧数据来源
+ * <p>
+ * 所有帧的png数据(签名 + IHDR + 共享的辅助块 + IDAT + IEND)首尾相接地存放在同一个byte数组里,
+ * 通过偏移表定位每一帧, 解码时使用{@link android.graphics.BitmapFactory#decodeByteArray}, 不产生任何文件
+ * <p>
+ * 有apng信息时帧的宽高直接使用fcTL中的宽高, 解码时不再读取图片头
+ */
+public class ApngMemoryFrameSource implements ApngFrameSource {
+
+    private byte[] data;
+    private final int[] frameOffsets;
+    private final int[] frameLengths;
+    private final int frameCount;
+    private final ApngInfo info; // 可以为null, 为null时解码前读取图片头
+    private final BitmapFactory.Options options = ApngImageUtils.createReusableOptions(); // 逐帧解码反复使用
+    private int sampleSize = 1;
+
+    ApngMemoryFrameSource(byte[] data, int[] frameOffsets, int[] frameLengths, int frameCount) {
+        this(data, frameOffsets, frameLengths, frameCount, null);
+    }
+
+    ApngMemoryFrameSource(byte[] data, int[] frameOffsets, int[] frameLengths, int frameCount, ApngInfo info) {
+        this.data = data;
+        this.info = info;
+        this.frameOffsets = frameOffsets;
+        this.frameLengths = frameLengths;
+        this.frameCount = frameCount;
+    }
+
+    @Override
+    public synchronized Bitmap decodeFrame(int frameIndex, Bitmap reuseBitmap) {
+        byte[] frameData = data;
+        if (frameData == null || frameIndex < 0 || frameIndex >= frameCount) return null;
+        boolean sizeKnown = info != null && frameIndex < info.frameCount;
+        return ApngImageUtils.decodeByteArrayToDrawable(frameData, frameOffsets[frameIndex], frameLengths[frameIndex],
+                sizeKnown ? info.getFrameWidth(frameIndex) : 0, sizeKnown ? info.getFrameHeight(frameIndex) : 0,
+                sampleSize, reuseBitmap, options);
+    }
+
+    @Override
+    public synchronized void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(sampleSize, 1);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * 给另一个drawable使用的帧数据来源, 帧数据只读, 与当前对象共用同一个数组, 不需要重新拆帧;
+     * 两者分别释放, 已经释放时返回null
+     */
+    synchronized ApngMemoryFrameSource share() {
+        if (data == null) return null;
+        return new ApngMemoryFrameSource(data, frameOffsets, frameLengths, frameCount, info);
+    }
+
+    @Override
+    public synchronized void release() {
+        data = null;
+    }
+}
@@ -0,0 +1,189 @@
+package com.foretree.apng;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 打包成单个文件的帧数据来源
+ * <p>
+ * 一个apng拆出的所有帧写在同一个文件里, 文件格式(大端):
+ * <pre>
+ * int   magic       'A' 'P' 'F' 'K'
+ * int   version
+ * int   frameCount
+ * long  totalLength 整个文件的长度, 用于完整性校验
+ * frameCount * (int offset, int length)  每帧png数据在文件中的位置
+ * 各帧png数据首尾相接
+ * </pre>
+ * 播放时只需要mmap一次文件, 通过偏移表取出每帧数据解码; 有apng信息时帧的宽高直接使用fcTL中的宽高, 解码时不再读取图片头
+ */
+public class ApngPackedFrameSource implements ApngFrameSource {
+
+    static final int MAGIC = 0x4150464B; // APFK
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    static final int INDEX_ENTRY_SIZE = 4 + 4;
+
+    private MappedByteBuffer buffer;
+    private final int[] frameOffsets;
+    private final int[] frameLengths;
+    private final int frameCount;
+    private byte[] frameData; // 解码时复用的帧数据buffer, 大小为最大的一帧
+    private ApngInfo info;    // 可以为null, 为null时解码前读取图片头
+    private final BitmapFactory.Options options = ApngImageUtils.createReusableOptions(); // 逐帧解码反复使用
+    private int sampleSize = 1;
+
+    private ApngPackedFrameSource(MappedByteBuffer buffer, int[] frameOffsets, int[] frameLengths, int frameCount) {
+        this.buffer = buffer;
+        this.frameOffsets = frameOffsets;
+        this.frameLengths = frameLengths;
+        this.frameCount = frameCount;
+        int maxLength = 0;
+        for (int i = 0; i < frameCount; i++) {
+            maxLength = Math.max(maxLength, frameLengths[i]);
+        }
+        frameData = new byte[maxLength];
+    }
+
+    /**
+     * 获取apng文件对应的帧打包文件名
+     */
+    public static String getFileName(File sourceFile) {
+        return sourceFile.getName() + ".frames";
+    }
+
+    /**
+     * 把内存中拆出的帧写成打包文件, 先写临时文件再重命名, 保证打包文件要么完整要么不存在
+     *
+     * @return 写入是否成功
+     */
+    static boolean write(File packFile, byte[] data, int[] frameOffsets, int[] frameLengths, int frameCount) {
+        int dataStart = HEADER_SIZE + frameCount * INDEX_ENTRY_SIZE;
+        int dataLength = frameCount > 0 ? frameOffsets[frameCount - 1] + frameLengths[frameCount - 1] : 0;
+        ByteBuffer header = ByteBuffer.allocate(dataStart);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(frameCount);
+        header.putLong(dataStart + (long) dataLength);
+        for (int i = 0; i < frameCount; i++) {
+            header.putInt(dataStart + frameOffsets[i]);
+            header.putInt(frameLengths[i]);
+        }
+
+        File tempFile = new File(packFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile, false);
+            fos.write(header.array());
+            fos.write(data, 0, dataLength);
+            fos.close();
+            fos = null;
+            if (packFile.exists()) {
+                packFile.delete();
+            }
+            return tempFile.renameTo(packFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        tempFile.delete();
+        return false;
+    }
+
+    /**
+     * 打开打包文件, 文件不存在或者校验不通过时返回null
+     */
+    public static ApngPackedFrameSource open(File packFile) {
+        return open(packFile, null);
+    }
+
+    /**
+     * 打开打包文件, 帧的宽高使用info中的fcTL宽高, info的帧数与打包文件不一致时不使用
+     */
+    static ApngPackedFrameSource open(File packFile, ApngInfo info) {
+        if (packFile == null || !packFile.exists()) return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(packFile, "r");
+            long fileLength = raf.length();
+            if (fileLength < HEADER_SIZE) return null;
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            int frameCount = buffer.getInt();
+            long totalLength = buffer.getLong();
+            if (frameCount < 0 || totalLength != fileLength
+                    || HEADER_SIZE + (long) frameCount * INDEX_ENTRY_SIZE > fileLength) {
+                return null;
+            }
+            int[] frameOffsets = new int[frameCount];
+            int[] frameLengths = new int[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                frameOffsets[i] = buffer.getInt();
+                frameLengths[i] = buffer.getInt();
+                if (frameOffsets[i] < 0 || frameLengths[i] < 0 || (long) frameOffsets[i] + frameLengths[i] > fileLength) {
+                    return null;
+                }
+            }
+            ApngPackedFrameSource packedSource = new ApngPackedFrameSource(buffer, frameOffsets, frameLengths, frameCount);
+            if (info != null && info.frameCount == frameCount) {
+                packedSource.info = info;
+            }
+            return packedSource;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // mmap之后关闭文件不影响映射内容的读取
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Bitmap decodeFrame(int frameIndex, Bitmap reuseBitmap) {
+        if (buffer == null || frameIndex < 0 || frameIndex >= frameCount) return null;
+        int length = frameLengths[frameIndex];
+        buffer.position(frameOffsets[frameIndex]);
+        buffer.get(frameData, 0, length);
+        ApngInfo frameInfo = info;
+        return ApngImageUtils.decodeByteArrayToDrawable(frameData, 0, length,
+                frameInfo != null ? frameInfo.getFrameWidth(frameIndex) : 0,
+                frameInfo != null ? frameInfo.getFrameHeight(frameIndex) : 0, sampleSize, reuseBitmap, options);
+    }
+
+    @Override
+    public synchronized void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(sampleSize, 1);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public synchronized void release() {
+        buffer = null;
+        frameData = null;
+    }
+}
@@ -0,0 +1,257 @@
+package com.foretree.apng;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ar.com.hjg.pngj.ImageInfo;
+
+/**
+ * 直接把apng帧的压缩数据解码成ARGB像素, 不再把每帧包装成独立的png交给BitmapFactory
+ * <p>
+ * 按{@link ApngInfo}中记录的位置读取每帧的IDAT/fdAT数据, 用同一个Inflater逐行解压, 在复用的行buffer中去掉过滤,
+ * 再转换成非预乘的ARGB(与{@link android.graphics.Bitmap#setPixels}的格式一致)
+ * <p>
+ * 支持8位的RGBA、RGB、灰度、灰度+alpha, 以及1/2/4/8位的调色板(包括tRNS); 不支持16位和隔行扫描的图片,
+ * 见{@link #isSupported(int, int, boolean)}
+ * <p>
+ * 不依赖Android, 同一个解码器不能在多个线程中同时使用
+ */
+class ApngPixelDecoder {
+
+    static final int COLOR_TYPE_GRAY = 0;
+    static final int COLOR_TYPE_RGB = 2;
+    static final int COLOR_TYPE_PALETTE = 3;
+    static final int COLOR_TYPE_GRAY_ALPHA = 4;
+    static final int COLOR_TYPE_RGBA = 6;
+
+    private final ApngInfo info;
+    private final Inflater inflater = new Inflater();
+    private final byte[] readBuffer = new byte[8 * 1024];
+    private byte[] currentRow = new byte[0];
+    private byte[] previousRow = new byte[0];
+
+    ApngPixelDecoder(ApngInfo info) {
+        this.info = info;
+    }
+
+    /**
+     * @return IHDR中的颜色类型
+     */
+    static int getColorType(ImageInfo imageInfo) {
+        if (imageInfo.indexed) return COLOR_TYPE_PALETTE;
+        if (imageInfo.greyscale) return imageInfo.alpha ? COLOR_TYPE_GRAY_ALPHA : COLOR_TYPE_GRAY;
+        return imageInfo.alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB;
+    }
+
+    /**
+     * @return 是否可以直接解码这种格式的图片
+     */
+    static boolean isSupported(int colorType, int bitDepth, boolean interlaced) {
+        if (interlaced) return false;
+        switch (colorType) {
+            case COLOR_TYPE_PALETTE:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+            case COLOR_TYPE_GRAY:
+            case COLOR_TYPE_RGB:
+            case COLOR_TYPE_GRAY_ALPHA:
+            case COLOR_TYPE_RGBA:
+                return bitDepth == 8;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 解码一帧, 帧的大小为fcTL中的宽高
+     *
+     * @param file       apng文件
+     * @param frameIndex 帧序号
+     * @param out        输出的像素
+     * @param offset     第一个像素在out中的位置
+     * @param stride     out中每行的长度
+     * @return 数据完整时返回true, 数据不足时已经解码的行仍然会输出
+     */
+    boolean decode(RandomAccessFile file, int frameIndex, int[] out, int offset, int stride)
+            throws IOException, DataFormatException {
+        return decode(file, frameIndex, out, offset, stride, 1);
+    }
+
+    /**
+     * 缩小解码一帧, 每sampleSize行取一行、每行每sampleSize个像素取一个, 输出的大小为
+     * {@link ApngImageUtils#getSampledSize(int, int)}; 压缩数据仍然要全部解压, 省去的是跳过的行的格式转换
+     *
+     * @param sampleSize 缩小倍数, 1表示不缩小
+     */
+    boolean decode(RandomAccessFile file, int frameIndex, int[] out, int offset, int stride, int sampleSize)
+            throws IOException, DataFormatException {
+        int width = info.getFrameWidth(frameIndex);
+        int height = info.getFrameHeight(frameIndex);
+        int outWidth = ApngImageUtils.getSampledSize(width, sampleSize);
+        int outHeight = ApngImageUtils.getSampledSize(height, sampleSize);
+        int bitsPerPixel = getBitsPerPixel();
+        int bytesPerPixel = Math.max(bitsPerPixel / 8, 1);
+        int rowBytes = (width * bitsPerPixel + 7) / 8 + 1; // 每行最前面有1字节的过滤类型
+        if (currentRow.length < rowBytes) {
+            currentRow = new byte[rowBytes];
+            previousRow = new byte[rowBytes];
+        }
+        Arrays.fill(previousRow, 0, rowBytes, (byte) 0);
+        inflater.reset();
+
+        int row = 0;
+        int filled = 0;
+        int chunkEnd = info.getFrameChunkEnd(frameIndex);
+        for (int chunk = info.getFrameChunkStart(frameIndex); chunk < chunkEnd && row < height; chunk++) {
+            long position = info.getChunkOffset(chunk);
+            int remaining = info.getChunkLength(chunk);
+            while (remaining > 0 && row < height) {
+                int length = Math.min(remaining, readBuffer.length);
+                file.seek(position);
+                file.readFully(readBuffer, 0, length);
+                position += length;
+                remaining -= length;
+                inflater.setInput(readBuffer, 0, length);
+
+                while (row < height) {
+                    int count = inflater.inflate(currentRow, filled, rowBytes - filled);
+                    filled += count;
+                    if (filled == rowBytes) {
+                        unfilter(currentRow, previousRow, rowBytes, bytesPerPixel);
+                        if (row % sampleSize == 0 && row / sampleSize < outHeight) {
+                            convertRow(currentRow, outWidth, sampleSize, out, offset + row / sampleSize * stride);
+                        }
+                        byte[] temp = previousRow;
+                        previousRow = currentRow;
+                        currentRow = temp;
+                        filled = 0;
+                        row++;
+                    } else if (count == 0) {
+                        // 需要更多数据, 或者数据已经结束
+                        if (inflater.needsDictionary()) throw new DataFormatException("preset dictionary");
+                        break;
+                    }
+                }
+                if (inflater.finished()) break;
+            }
+        }
+        return row == height;
+    }
+
+    /**
+     * 释放Inflater占用的native内存, 之后不能再使用
+     */
+    void release() {
+        inflater.end();
+    }
+
+    private int getBitsPerPixel() {
+        int bitDepth = info.getBitDepth();
+        switch (info.getColorType()) {
+            case COLOR_TYPE_RGB:
+                return bitDepth * 3;
+            case COLOR_TYPE_GRAY_ALPHA:
+                return bitDepth * 2;
+            case COLOR_TYPE_RGBA:
+                return bitDepth * 4;
+            default:
+                return bitDepth;
+        }
+    }
+
+    // 去掉png的行过滤, row[0]为过滤类型
+    static void unfilter(byte[] row, byte[] previous, int rowBytes, int bytesPerPixel) {
+        int filter = row[0];
+        switch (filter) {
+            case 1: // Sub
+                for (int i = 1 + bytesPerPixel; i < rowBytes; i++) {
+                    row[i] = (byte) (row[i] + row[i - bytesPerPixel]);
+                }
+                break;
+            case 2: // Up
+                for (int i = 1; i < rowBytes; i++) {
+                    row[i] = (byte) (row[i] + previous[i]);
+                }
+                break;
+            case 3: // Average
+                for (int i = 1; i < rowBytes; i++) {
+                    int left = i > bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+                    row[i] = (byte) (row[i] + ((left + (previous[i] & 0xFF)) >> 1));
+                }
+                break;
+            case 4: // Paeth
+                for (int i = 1; i < rowBytes; i++) {
+                    int left = i > bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+                    int up = previous[i] & 0xFF;
+                    int upLeft = i > bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+                    row[i] = (byte) (row[i] + paeth(left, up, upLeft));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    // 把去掉过滤后的一行转换成ARGB, 每sampleSize个像素取一个
+    private void convertRow(byte[] row, int width, int sampleSize, int[] out, int outOffset) {
+        int transparent = info.getTransparentColor();
+        switch (info.getColorType()) {
+            case COLOR_TYPE_RGBA:
+                for (int x = 0, i = 1; x < width; x++, i += 4 * sampleSize) {
+                    out[outOffset + x] = ((row[i + 3] & 0xFF) << 24) | ((row[i] & 0xFF) << 16)
+                            | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+                }
+                break;
+            case COLOR_TYPE_RGB:
+                for (int x = 0, i = 1; x < width; x++, i += 3 * sampleSize) {
+                    int rgb = ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+                    out[outOffset + x] = rgb == transparent ? 0 : 0xFF000000 | rgb;
+                }
+                break;
+            case COLOR_TYPE_GRAY_ALPHA:
+                for (int x = 0, i = 1; x < width; x++, i += 2 * sampleSize) {
+                    int gray = row[i] & 0xFF;
+                    out[outOffset + x] = ((row[i + 1] & 0xFF) << 24) | (gray * 0x010101);
+                }
+                break;
+            case COLOR_TYPE_GRAY:
+                for (int x = 0, i = 1; x < width; x++, i += sampleSize) {
+                    int gray = row[i] & 0xFF;
+                    out[outOffset + x] = gray == transparent ? 0 : 0xFF000000 | (gray * 0x010101);
+                }
+                break;
+            case COLOR_TYPE_PALETTE:
+                int[] palette = info.getPalette();
+                int bitDepth = info.getBitDepth();
+                int mask = (1 << bitDepth) - 1;
+                int pixelsPerByte = 8 / bitDepth;
+                for (int x = 0; x < width; x++) {
+                    int sx = x * sampleSize;
+                    int index;
+                    if (bitDepth == 8) {
+                        index = row[sx + 1] & 0xFF;
+                    } else {
+                        int value = row[sx / pixelsPerByte + 1] & 0xFF;
+                        int shift = 8 - bitDepth * (sx % pixelsPerByte + 1);
+                        index = (value >> shift) & mask;
+                    }
+                    out[outOffset + x] = palette != null && index < palette.length ? palette[index] : 0;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.foretree.apng;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 所有apng共享的渲染调度器
+ * <p>
+ * 一个定时线程负责计时, 时间到了之后把解码任务交给按cpu核数确定大小的解码线程池执行,
+ * 无论同时播放多少个apng, 线程数都保持不变
+ * <p>
+ * 每个正在播放的{@link ApngDrawable}持有一个{@link Token}, 停止播放时取消token, 已经提交的任务在执行前会被丢弃;
+ * 同一个token的任务在执行时互斥, 保证同一个drawable的解码不会并发
+ */
+public class ApngRenderScheduler {
+
+    /**
+     * 解码线程数, 需要在第一次播放之前设置, 小于等于0时按cpu核数计算
+     */
+    public static int DECODE_THREAD_COUNT = 0;
+
+    private static volatile ApngRenderScheduler mInstance;
+
+    // 解码线程当前正在执行的任务所属的凭证
+    private static final ThreadLocal<Token> currentToken = new ThreadLocal<>();
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final ThreadPoolExecutor decodeExecutor;
+
+    /**
+     * 一次播放的调度凭证
+     */
+    public static class Token {
+        private final Object lock;
+        private volatile boolean cancelled = false;
+
+        Token(Object lock) {
+            this.lock = lock;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private ApngRenderScheduler() {
+        int threadCount = DECODE_THREAD_COUNT;
+        if (threadCount <= 0) {
+            // 留一个核给ui线程
+            threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+        }
+        timer = new ScheduledThreadPoolExecutor(1, new RenderThreadFactory("apng-timer"),
+                new ThreadPoolExecutor.DiscardPolicy());
+        decodeExecutor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new RenderThreadFactory("apng-decode"),
+                new ThreadPoolExecutor.DiscardPolicy());
+        // 没有apng播放时回收空闲线程
+        decodeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ApngRenderScheduler getInstance() {
+        if (mInstance == null) {
+            synchronized (ApngRenderScheduler.class) {
+                if (mInstance == null) {
+                    mInstance = new ApngRenderScheduler();
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /**
+     * 创建一次播放的调度凭证
+     *
+     * @param lock 同一个drawable的任务使用同一个锁
+     */
+    Token newToken(Object lock) {
+        return new Token(lock);
+    }
+
+    /**
+     * @return 当前解码线程正在执行的任务所属的凭证, 不在解码任务中时返回null
+     */
+    static Token currentToken() {
+        return currentToken.get();
+    }
+
+    /**
+     * 立即在解码线程执行任务
+     */
+    void execute(Token token, Runnable task) {
+        decodeExecutor.execute(new TokenTask(token, task));
+    }
+
+    /**
+     * 延迟一段时间后在解码线程执行任务
+     */
+    void schedule(final Token token, final Runnable task, long delayMillis) {
+        if (token.isCancelled()) return;
+        if (delayMillis <= 0) {
+            execute(token, task);
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!token.isCancelled()) {
+                    execute(token, task);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static class TokenTask implements Runnable {
+        private final Token token;
+        private final Runnable task;
+
+        TokenTask(Token token, Runnable task) {
+            this.token = token;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (token.isCancelled()) return;
+            synchronized (token.lock) {
+                if (token.isCancelled()) return;
+                currentToken.set(token);
+                try {
+                    task.run();
+                } finally {
+                    currentToken.set(null);
+                }
+            }
+        }
+    }
+
+    static class RenderThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        RenderThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
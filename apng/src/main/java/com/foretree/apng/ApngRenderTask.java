@@ -3,51 +3,179 @@ package com.foretree.apng;
 import android.graphics.Bitmap;
 import android.os.SystemClock;
 
-import java.util.concurrent.TimeUnit;
-
 /**
  * Created by xiejing on 16/3/28.
  *
  * 负责调度每帧的解码和绘制
+ * <p>
+ * 开启时间轴模式后({@link ApngDrawable#setDropLateFrames(boolean)}), 每帧都有一个按fcTL延迟累加出的绝对显示时间,
+ * 解码跟不上时迟到的帧只合成不显示, 动画始终与真实时间保持同步
+ * <p>
+ * 开启预解码后({@link ApngDrawable#setDecodeAhead(int)}), 在两帧之间提前合成后面的帧放入{@link ApngFrameRing},
+ * 到时间时只需要取出已经合成好的帧显示
+ * <p>
+ * 边下载边播放时(见{@link ApngStreamLoader}), 下一帧还没有下载完时停在当前帧, 不再调度自己,
+ * 下载线程解析到新的帧或者下载结束时唤醒, 之后从当前时间重新开始计算时间轴
  */
 public class ApngRenderTask implements Runnable {
     private ApngDrawable apngDrawable;
     private ApngFrameDecode apngDecode;
+    private long frameDeadline; // 下一帧应该开始显示的时间
+    boolean dropLateFrames = false;
+    private ApngFrameRing frameRing; // 预解码的帧, 为null时不预解码
+    private int composedFrame;       // 最后合成的帧, 预解码时领先于当前显示的帧
+    private boolean waitingForData;  // 是否在等待下一帧下载完
+    private volatile ApngRenderScheduler.Token waitToken; // 开始等待时渲染任务的凭证, 唤醒时沿用
+
+    // 下载线程中执行, 有新的帧或者下载结束时重新提交渲染任务; stop之后凭证已经取消, 不再执行
+    private final Runnable framesListener = new Runnable() {
+        @Override
+        public void run() {
+            ApngRenderScheduler.Token token = waitToken;
+            if (token != null) {
+                ApngRenderScheduler.getInstance().execute(token, resumeTask);
+            }
+        }
+    };
+
+    // 唤醒后继续渲染, 已经不在等待时(重复唤醒)什么都不做, 保证只有一条渲染任务链
+    private final Runnable resumeTask = new Runnable() {
+        @Override
+        public void run() {
+            if (waitingForData) {
+                ApngRenderTask.this.run();
+            }
+        }
+    };
+
+    // 预解码任务, 每次合成一帧, 队列未满时继续提交自己, 让出线程给其他apng
+    private final Runnable fillTask = new Runnable() {
+        @Override
+        public void run() {
+            ApngFrameRing ring = frameRing;
+            if (ring == null || ring.isFull() || !apngDrawable.isRunning()) return;
+            int nextFrame = composedFrame + 1;
+            // 还没有下载完时停止预解码, 由渲染任务在下载完后重新开始
+            if (apngDecode.isWaitingForFrame(nextFrame)) return;
+            if (!apngDecode.hasFrame(nextFrame)) {
+                nextFrame = 0;
+            }
+            Bitmap bitmap = apngDecode.createFrameBitmap(nextFrame);
+            composedFrame = nextFrame;
+            // 队列中的帧在显示之前不能被复用
+            apngDrawable.bitmapCache.pinBitmap(bitmap);
+            ring.offer(nextFrame, bitmap);
+            if (!ring.isFull()) {
+                apngDrawable.executeRender(this);
+            }
+        }
+    };
+
     public ApngRenderTask(ApngDrawable apngDrawable, ApngFrameDecode apngDecode) {
         this.apngDrawable = apngDrawable;
         this.apngDecode = apngDecode;
     }
+
+    // 第一帧(开始播放或者跳转后的帧)开始显示时调用, 初始化时间轴
+    void startTimeline(long firstDeadline, int firstFrame) {
+        frameDeadline = firstDeadline;
+        composedFrame = firstFrame;
+        waitingForData = false;
+        if (frameRing != null) {
+            // 之前预解码的帧与新的进度不连续
+            while (!frameRing.isEmpty()) {
+                apngDrawable.discardFrame(frameRing.poll());
+            }
+            apngDrawable.executeRender(fillTask);
+        }
+    }
+
+    // 设置预解码的帧数, 需要在开始播放之前调用
+    void setDecodeAhead(int frames) {
+        frameRing = frames > 0 ? new ApngFrameRing(frames) : null;
+    }
+
+    // 取得指定帧: 优先使用预解码好的帧, 没有时当场合成
+    private Bitmap takeFrame(int frameIndex) {
+        ApngFrameRing ring = frameRing;
+        if (ring != null && !ring.isEmpty()) {
+            if (ring.peekFrameIndex() == frameIndex) {
+                return ring.poll();
+            }
+            // 预解码的帧与播放进度不连续, 全部丢弃
+            while (!ring.isEmpty()) {
+                apngDrawable.discardFrame(ring.poll());
+            }
+        }
+        Bitmap bitmap = apngDecode.createFrameBitmap(frameIndex);
+        composedFrame = frameIndex;
+        return bitmap;
+    }
+
     @Override
     public void run() {
-        int nextFrame = apngDrawable.currentFrame+1;
-        if (nextFrame >= apngDecode.frameCount) {
-            if (apngDrawable.needRepeat()) {
-                apngDrawable.currentFrame = -1;
-                nextFrame = 0;
-            } else {
-                return;
+        long startTime = SystemClock.uptimeMillis();
+        Bitmap bitmap;
+        long presentTime;
+        int skipCount = 0;
+        while (true) {
+            int nextFrame = apngDrawable.currentFrame + 1;
+            if (apngDecode.isWaitingForFrame(nextFrame)) {
+                // 下一帧还在下载, 停在当前帧等待下载线程唤醒
+                waitingForData = true;
+                waitToken = ApngRenderScheduler.currentToken();
+                if (apngDecode.waitForFrame(nextFrame, framesListener)) return;
+            }
+            if (waitingForData) {
+                // 等待期间时间轴已经过去, 从现在重新开始
+                waitingForData = false;
+                frameDeadline = startTime;
+            }
+            if (!apngDecode.hasFrame(nextFrame)) {
+                if (apngDrawable.needRepeat()) {
+                    apngDrawable.currentFrame = -1;
+                    nextFrame = 0;
+                } else {
+                    return;
+                }
             }
+            // 创建, 迟到的帧也需要合成, 后面的帧依赖它的dispose/blend结果
+            bitmap = takeFrame(nextFrame);
+            apngDrawable.currentFrame++;
+            presentTime = frameDeadline;
+            frameDeadline += apngDecode.getFrameDelay(nextFrame);
+
+            if (!dropLateFrames) break;
+            long now = SystemClock.uptimeMillis();
+            if (frameDeadline > now) break;
+            // 这一帧的显示时间已经过去了, 跳过显示; 落后超过一轮, 或者下一帧还在下载时, 重新对齐时间轴并显示这一帧
+            if (++skipCount >= apngDecode.frameCount
+                    || apngDecode.isWaitingForFrame(apngDrawable.currentFrame + 1)) {
+                frameDeadline = now;
+                break;
+            }
+            apngDrawable.discardFrame(bitmap);
         }
-        long startTime = SystemClock.uptimeMillis();
-        // 创建
-        Bitmap bitmap = apngDecode.createFrameBitmap(nextFrame);
 
-        if (apngDrawable.frameBp != null && apngDrawable.frameBp != bitmap) {
-            apngDrawable.bitmapCache.reuseBitmap(apngDrawable.frameBp);
+        long delay;
+        if (dropLateFrames) {
+            delay = frameDeadline - SystemClock.uptimeMillis();
+        } else {
+            long takeTime = SystemClock.uptimeMillis() - startTime;
+            delay = apngDecode.getFrameDelay(apngDrawable.currentFrame);
+            // 把解码耗的时间减掉
+            delay -= takeTime;
         }
-        apngDrawable.frameBp = bitmap;
-        apngDrawable.currentFrame++;
-        long takeTime = SystemClock.uptimeMillis()-startTime;
-        int delay = apngDecode.getFrameDelay(nextFrame);
-        // 把解码耗的时间减掉
-        delay -= takeTime;
 
         // 定时下一次任务
-        apngDrawable.excutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        apngDrawable.scheduleRender(this, delay);
+
+        // 提交新帧并通知ui刷新
+        apngDrawable.publishFrame(bitmap, dropLateFrames ? presentTime : startTime);
 
-        // 通知ui刷新
-        if (apngDrawable.isVisible() && apngDrawable.isRunning() && !apngDrawable.invalidationHandler.hasMessages(0)) {
-            apngDrawable.invalidationHandler.sendEmptyMessageAtTime(0, 0);
+        // 渲染取走了一帧, 继续预解码
+        if (frameRing != null && !frameRing.isFull()) {
+            apngDrawable.executeRender(fillTask);
         }
     }
 }
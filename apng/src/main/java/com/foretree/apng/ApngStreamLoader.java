@@ -0,0 +1,303 @@
+package com.foretree.apng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ar.com.hjg.pngj.PngjException;
+
+/**
+ * 边下载边播放
+ * <p>
+ * 下载的数据先写入缓存文件旁边的临时文件, 同时按DIRECT方式解析(见{@link ApngDirectFrameSource}), 一帧的fcTL和数据块
+ * 全部到达后这一帧就可以播放, 播放到还没有下载完的帧时暂停等待. 下载完成后临时文件重命名为缓存文件, 并保存解析结果,
+ * 之后与普通的缓存文件一样使用
+ * <p>
+ * 同一个缓存文件同时只有一个下载, 后来的请求共用同一个下载, 各自使用独立的帧数据来源;
+ * 等待第一帧的请求都已经取消、已经返回的帧数据来源也都释放之后, 下载在读取下一段数据时停止, 删除临时文件
+ */
+class ApngStreamLoader implements Runnable {
+
+    private static final String PART_SUFFIX = ".part";
+    // 同时进行的下载数与加载器的网络线程数相同, 快速滑动时多出的下载排队等待, 排队中全部取消的下载不会开始
+    private static final ThreadPoolExecutor DOWNLOAD_EXECUTOR = createExecutor();
+    private static final Map<String, ApngStreamLoader> LOADING = new HashMap<>(); // 正在下载的缓存文件
+    private static final long CANCEL_CHECK_INTERVAL = 100; // 等待第一帧时检查请求是否取消的间隔, 毫秒
+
+    private final String uri;
+    private final File cacheFile;
+    private final File partFile;
+    private final ApngInfo info = new ApngInfo();
+
+    // 以下字段受this保护
+    private final List<ApngDirectFrameSource> frameSources = new ArrayList<>();
+    private final List<AtomicBoolean> waiters = new ArrayList<>(); // 还在等待第一帧的请求的取消标记
+    private int availableFrames = 0;
+    private boolean streamable = true; // 不是apng或者像素格式不支持直接解码时为false, 只下载不解析
+    private boolean finished = false;
+    private boolean aborted = false;    // 没有请求再需要这个下载, 已经停止
+
+    private static ThreadPoolExecutor createExecutor() {
+        int threadCount = Math.max(ApngImageLoader.NETWORK_THREAD_COUNT, 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ApngRenderScheduler.RenderThreadFactory("apng-stream"),
+                new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private ApngStreamLoader(String uri, File cacheFile) {
+        this.uri = uri;
+        this.cacheFile = cacheFile;
+        partFile = new File(cacheFile.getPath() + PART_SUFFIX);
+    }
+
+    /**
+     * 开始下载(同一个文件正在下载时共用), 等到第一帧可以播放时返回
+     *
+     * @param uri       网络地址
+     * @param cacheFile 下载完成后的缓存文件
+     * @return 可以马上播放的解析结果和帧数据来源; 不能边下载边播放时返回null, 此时下载已经结束(成功或者失败)
+     */
+    static ApngExtractFrames.LoadResult load(String uri, File cacheFile) {
+        return load(uri, cacheFile, null);
+    }
+
+    /**
+     * @param cancelled 不为null时等待过程中检查, 取消后返回null; 共用这个下载的请求都取消后下载停止
+     */
+    static ApngExtractFrames.LoadResult load(String uri, File cacheFile, AtomicBoolean cancelled) {
+        if (cancelled == null) cancelled = new AtomicBoolean(false);
+        ApngStreamLoader loader;
+        synchronized (LOADING) {
+            loader = LOADING.get(cacheFile.getPath());
+            boolean started = loader != null;
+            if (!started) {
+                loader = new ApngStreamLoader(uri, cacheFile);
+                LOADING.put(cacheFile.getPath(), loader);
+            }
+            // 下载开始之前登记, 下载线程不会在还没有请求时就认为没人需要
+            loader.addWaiter(cancelled);
+            if (!started) {
+                DOWNLOAD_EXECUTOR.execute(loader);
+            }
+        }
+        return loader.awaitFirstFrame(cancelled);
+    }
+
+    private synchronized void addWaiter(AtomicBoolean cancelled) {
+        waiters.add(cancelled);
+    }
+
+    private synchronized ApngExtractFrames.LoadResult awaitFirstFrame(AtomicBoolean cancelled) {
+        boolean interrupted = false;
+        try {
+            // 第一帧到达时acTL也已经读到, 不是apng时等待下载结束
+            while (!finished && !cancelled.get() && !(streamable && availableFrames > 0 && info.numFrames > 1)) {
+                wait(CANCEL_CHECK_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            interrupted = true;
+        }
+        waiters.remove(cancelled);
+        if (interrupted || cancelled.get() || finished) return null;
+        ApngDirectFrameSource frameSource = new ApngDirectFrameSource(partFile, info, true);
+        frameSource.setAvailableFrames(availableFrames);
+        frameSources.add(frameSource);
+        return new ApngExtractFrames.LoadResult(info, frameSource);
+    }
+
+    // 解析线程中调用, 前count帧的数据已经写入临时文件
+    private synchronized void publishFrames(int count) {
+        if (aborted) return;
+        availableFrames = count;
+        for (ApngDirectFrameSource frameSource : frameSources) {
+            frameSource.setAvailableFrames(count);
+        }
+        notifyAll();
+    }
+
+    // 下载线程每读一段数据检查一次, 等待的请求都已经取消并且返回的帧数据来源都已经释放时停止下载
+    private synchronized void checkAborted() throws IOException {
+        if (!aborted) {
+            for (AtomicBoolean cancelled : waiters) {
+                if (!cancelled.get()) return;
+            }
+            for (ApngDirectFrameSource frameSource : frameSources) {
+                if (!frameSource.isReleased()) return;
+            }
+            aborted = true;
+        }
+        throw new IOException("stream of " + uri + " is no longer needed");
+    }
+
+    private synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    private synchronized void setUnstreamable() {
+        streamable = false;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        boolean success = false;
+        InputStream input = null;
+        try {
+            // 排队期间请求可能已经全部取消
+            checkAborted();
+            input = new TeeInputStream(new URL(uri).openStream(), new FileOutputStream(partFile, false)) {
+                @Override
+                void beforeRead() throws IOException {
+                    checkAborted();
+                }
+            };
+            try {
+                ApngExtractFrames.PngReaderBuffered pngr = new ApngExtractFrames.PngReaderBuffered(input, partFile) {
+                    @Override
+                    protected void onFramesAvailable(int count) {
+                        publishFrames(count);
+                    }
+                };
+                if (ApngPixelDecoder.isSupported(ApngPixelDecoder.getColorType(pngr.imgInfo), pngr.imgInfo.bitDepth,
+                        pngr.interlaced)) {
+                    info.setImageHeader(pngr.imgInfo, pngr.interlaced);
+                    pngr.info = info;
+                    pngr.end();
+                } else {
+                    setUnstreamable();
+                }
+            } catch (PngjException e) {
+                // 停止下载时读取出错, 不再继续
+                if (isAborted()) throw e;
+                // 不是png或者数据有误, 仍然下载完整, 交给普通的加载流程处理; 网络错误在后面读取时会再次抛出
+                e.printStackTrace();
+                setUnstreamable();
+            }
+            // 读完剩下的数据(比如IEND之后的数据, 或者不解析时的所有数据), 保证缓存文件完整
+            drain(input);
+            input.close();
+            input = null;
+            success = true;
+        } catch (Exception e) {
+            if (!isAborted()) e.printStackTrace();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        finish(success);
+    }
+
+    // 下载结束, 成功时临时文件成为缓存文件
+    private void finish(boolean success) {
+        boolean moved = false;
+        if (success) {
+            if (cacheFile.exists()) cacheFile.delete();
+            moved = partFile.renameTo(cacheFile);
+        }
+        synchronized (this) {
+            if (moved) publishFrames(info.frameCount);
+            for (ApngDirectFrameSource frameSource : frameSources) {
+                frameSource.finishLoading(moved ? cacheFile : null);
+            }
+            finished = true;
+            notifyAll();
+        }
+        if (moved && streamable && info.isApng()) {
+            // 下次播放时不需要再解析
+            info.save(cacheFile);
+            ApngInfoCache.getInstance().put(cacheFile, info);
+        }
+        if (!moved) {
+            // 已经打开的临时文件在删除后仍然可以读取
+            partFile.delete();
+        }
+        synchronized (LOADING) {
+            LOADING.remove(cacheFile.getPath());
+        }
+    }
+
+    private static void drain(InputStream input) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        while (input.read(buffer) >= 0) {
+            // 数据由TeeInputStream写入文件
+        }
+    }
+
+    /**
+     * 读取的同时把数据写入文件
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream output;
+
+        TeeInputStream(InputStream input, OutputStream output) {
+            super(input);
+            this.output = output;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) output.write(b);
+            return b;
+        }
+
+        // 每读一段数据之前调用, 抛出异常时停止读取
+        void beforeRead() throws IOException {
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            beforeRead();
+            int count = super.read(b, off, len);
+            if (count > 0) output.write(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // 跳过的数据也要写入文件
+            byte[] buffer = new byte[(int) Math.min(n, 8 * 1024)];
+            long skipped = 0;
+            while (skipped < n) {
+                int count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (count < 0) break;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.foretree.apng;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * 按屏幕刷新(vsync)合并所有apng的刷新请求
+ * <p>
+ * 解码线程产生新帧后只登记需要刷新的drawable, 每个显示帧只在主线程回调一次,
+ * 在回调中按这一帧的vsync时间统一切换到显示时间最接近的帧并invalidate, 同时播放很多apng时大大减少主线程的消息数
+ */
+class ApngVsyncInvalidator implements Choreographer.FrameCallback {
+
+    private static volatile ApngVsyncInvalidator mInstance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<ApngDrawable> pendingDrawables = new ArrayList<>(); // 受this保护
+    private final ArrayList<ApngDrawable> dispatchingDrawables = new ArrayList<>(); // 只在主线程使用
+    private boolean callbackPosted = false;
+
+    private final Runnable postFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(ApngVsyncInvalidator.this);
+        }
+    };
+
+    static ApngVsyncInvalidator getInstance() {
+        if (mInstance == null) {
+            synchronized (ApngVsyncInvalidator.class) {
+                if (mInstance == null) {
+                    mInstance = new ApngVsyncInvalidator();
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /**
+     * 请求在下一个vsync时刷新drawable, 可以在任意线程调用
+     */
+    void requestFrame(ApngDrawable drawable) {
+        synchronized (this) {
+            if (!drawable.vsyncRequested) {
+                drawable.vsyncRequested = true;
+                pendingDrawables.add(drawable);
+            }
+            if (callbackPosted) return;
+            callbackPosted = true;
+        }
+        // Choreographer只能在主线程使用
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            postFrameCallback.run();
+        } else {
+            mainHandler.post(postFrameCallback);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            dispatchingDrawables.addAll(pendingDrawables);
+            pendingDrawables.clear();
+            for (int i = 0; i < dispatchingDrawables.size(); i++) {
+                dispatchingDrawables.get(i).vsyncRequested = false;
+            }
+            callbackPosted = false;
+        }
+        for (int i = 0; i < dispatchingDrawables.size(); i++) {
+            dispatchingDrawables.get(i).onVsync(frameTimeNanos);
+        }
+        dispatchingDrawables.clear();
+    }
+}
@@ -0,0 +1,154 @@
+package com.foretree.apng;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ApngCompositor}的dispose和blend处理
+ */
+public class ApngCompositorTest {
+
+    private static final int RED = 0xFFFF0000;
+    private static final int GREEN = 0xFF00FF00;
+    private static final int BLUE = 0xFF0000FF;
+    private static final int HALF_BLUE = 0x800000FF;
+
+    private static int[] solid(int color, int size) {
+        int[] pixels = new int[size];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    @Test
+    public void sourceBlendOnlyTouchesFrameRegion() {
+        ApngCompositor compositor = new ApngCompositor(4, 4);
+        compositor.compose(solid(RED, 16), 0, 4, 0, 0, 4, 4,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        compositor.compose(solid(GREEN, 4), 0, 2, 1, 1, 2, 2,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+
+        int[] pixels = compositor.getPixels();
+        assertEquals(RED, pixels[0]);
+        assertEquals(GREEN, pixels[5]);
+        assertEquals(GREEN, pixels[10]);
+        assertEquals(RED, pixels[11]);
+    }
+
+    @Test
+    public void overBlendKeepsBackgroundUnderTransparentPixels() {
+        ApngCompositor compositor = new ApngCompositor(2, 1);
+        compositor.compose(solid(RED, 2), 0, 2, 0, 0, 2, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        compositor.compose(new int[]{0, HALF_BLUE}, 0, 2, 0, 0, 2, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+
+        int[] pixels = compositor.getPixels();
+        assertEquals(RED, pixels[0]);
+        assertEquals(0xFF7F0080, pixels[1]);
+    }
+
+    @Test
+    public void backgroundDisposeClearsOnlyPreviousRegion() {
+        ApngCompositor compositor = new ApngCompositor(4, 1);
+        compositor.compose(solid(RED, 4), 0, 4, 0, 0, 4, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        compositor.compose(solid(GREEN, 2), 0, 2, 0, 0, 2, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        compositor.compose(solid(BLUE, 1), 0, 1, 3, 0, 1, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+
+        int[] pixels = compositor.getPixels();
+        assertEquals(0, pixels[0]);
+        assertEquals(0, pixels[1]);
+        assertEquals(RED, pixels[2]);
+        assertEquals(BLUE, pixels[3]);
+    }
+
+    @Test
+    public void previousDisposeRestoresOverwrittenRegion() {
+        ApngCompositor compositor = new ApngCompositor(3, 1);
+        compositor.compose(solid(RED, 3), 0, 3, 0, 0, 3, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        compositor.compose(solid(GREEN, 2), 0, 2, 1, 0, 2, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        assertEquals(GREEN, compositor.getPixels()[1]);
+
+        compositor.compose(solid(BLUE, 1), 0, 1, 0, 0, 1, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+
+        int[] pixels = compositor.getPixels();
+        assertEquals(BLUE, pixels[0]);
+        assertEquals(RED, pixels[1]);
+        assertEquals(RED, pixels[2]);
+    }
+
+    @Test
+    public void previousDisposeOnFirstFrameClearsToBackground() {
+        ApngCompositor compositor = new ApngCompositor(2, 1);
+        compositor.compose(solid(RED, 2), 0, 2, 0, 0, 2, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        compositor.compose(solid(GREEN, 1), 0, 1, 1, 0, 1, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+
+        int[] pixels = compositor.getPixels();
+        assertEquals(0, pixels[0]);
+        assertEquals(GREEN, pixels[1]);
+    }
+
+    @Test
+    public void frameOutsideCanvasIsClipped() {
+        ApngCompositor compositor = new ApngCompositor(2, 2);
+        compositor.compose(solid(GREEN, 9), 0, 3, 1, 1, 3, 3,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+
+        int[] pixels = compositor.getPixels();
+        assertEquals(0, pixels[0]);
+        assertEquals(0, pixels[1]);
+        assertEquals(0, pixels[2]);
+        assertEquals(GREEN, pixels[3]);
+    }
+
+    @Test
+    public void dirtyRectIsUnionOfDisposedAndCurrentRegion() {
+        ApngCompositor compositor = new ApngCompositor(8, 8);
+        compositor.compose(solid(RED, 64), 0, 8, 0, 0, 8, 8,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        assertDirty(compositor, 0, 0, 8, 8);
+
+        compositor.compose(solid(GREEN, 4), 0, 2, 1, 1, 2, 2,
+                PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        assertDirty(compositor, 1, 1, 3, 3);
+
+        compositor.compose(solid(BLUE, 4), 0, 2, 5, 4, 2, 2,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        assertDirty(compositor, 1, 1, 7, 6);
+
+        // 上一帧不需要dispose时只有当前帧的区域
+        compositor.compose(solid(GREEN, 1), 0, 1, 0, 7, 1, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        assertDirty(compositor, 0, 7, 1, 8);
+    }
+
+    @Test
+    public void firstFrameAfterResetIsFullyDirty() {
+        ApngCompositor compositor = new ApngCompositor(4, 4);
+        compositor.compose(solid(RED, 1), 0, 1, 1, 1, 1, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        compositor.reset();
+        compositor.compose(solid(RED, 1), 0, 1, 1, 1, 1, 1,
+                PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        assertDirty(compositor, 0, 0, 4, 4);
+    }
+
+    private static void assertDirty(ApngCompositor compositor, int left, int top, int right, int bottom) {
+        assertEquals(left, compositor.getDirtyLeft());
+        assertEquals(top, compositor.getDirtyTop());
+        assertEquals(right, compositor.getDirtyRight());
+        assertEquals(bottom, compositor.getDirtyBottom());
+    }
+}
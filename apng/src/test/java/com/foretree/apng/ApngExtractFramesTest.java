@@ -0,0 +1,50 @@
+package com.foretree.apng;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ApngExtractFrames}拆出的帧在偏移表中的位置, 用手工拼出的apng作为输入
+ */
+public class ApngExtractFramesTest {
+
+    // 每帧的大小都不同, 帧数据的长度也就不同
+    private static final int[][] FRAME_SIZES = {{8, 8}, {3, 2}, {6, 5}, {1, 1}};
+
+    @Test
+    public void memoryModeRecordsEachFrameAtItsOwnIndex() throws Exception {
+        File file = File.createTempFile("frames", ".png");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(ApngTestFiles.createApng(FRAME_SIZES));
+            out.close();
+            ApngExtractFrames.PngReaderBuffered pngr =
+                    new ApngExtractFrames.PngReaderBuffered(file, ApngExtractFrames.ExtractMode.MEMORY);
+            pngr.end();
+
+            assertEquals(FRAME_SIZES.length, pngr.frameIndex + 1);
+            byte[] data = pngr.blob.buffer();
+            int expectedOffset = 0;
+            for (int i = 0; i < FRAME_SIZES.length; i++) {
+                int offset = pngr.frameOffsets[i];
+                int length = pngr.frameLengths[i];
+                assertEquals("offset of frame " + i, expectedOffset, offset);
+                for (int j = 0; j < ApngTestFiles.PNG_SIGNATURE.length; j++) {
+                    assertEquals(ApngTestFiles.PNG_SIGNATURE[j], data[offset + j]);
+                }
+                // 签名之后是IHDR, 宽高属于同一帧说明长度记录在了这一帧上
+                assertEquals("width of frame " + i, FRAME_SIZES[i][0], ApngTestFiles.readInt(data, offset + 16));
+                assertEquals("height of frame " + i, FRAME_SIZES[i][1], ApngTestFiles.readInt(data, offset + 20));
+                assertEquals("IEND", new String(data, offset + length - 8, 4, "US-ASCII"));
+                expectedOffset = offset + length;
+            }
+            assertEquals(pngr.blob.size(), expectedOffset);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.foretree.apng;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ApngInfo}的关键帧索引、不透明判断和解析结果的保存读取
+ */
+public class ApngInfoTest {
+
+    private static final ImageInfo IMAGE_INFO = new ImageInfo(10, 10, 8, true);
+
+    private static void addFrame(ApngInfo info, int x, int y, int width, int height, byte dispose, byte blend) {
+        PngChunkFCTL fctl = new PngChunkFCTL(IMAGE_INFO);
+        fctl.setxOff(x);
+        fctl.setyOff(y);
+        fctl.setWidth(width);
+        fctl.setHeight(height);
+        fctl.setDisposeOp(dispose);
+        fctl.setBlendOp(blend);
+        info.addFrame(fctl);
+    }
+
+    @Test
+    public void fullCanvasSourceFrameIsKeyFrame() {
+        ApngInfo info = new ApngInfo();
+        info.setImageHeader(IMAGE_INFO, false);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+
+        assertEquals(0, info.getKeyFrame(0));
+        assertEquals(0, info.getKeyFrame(1));
+        assertEquals(2, info.getKeyFrame(2));
+        assertEquals(2, info.getKeyFrame(3));
+    }
+
+    @Test
+    public void frameAfterFullCanvasBackgroundDisposeIsKeyFrame() {
+        ApngInfo info = new ApngInfo();
+        info.setImageHeader(IMAGE_INFO, false);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+
+        assertEquals(0, info.getKeyFrame(1));
+        assertEquals(2, info.getKeyFrame(2));
+        // 只清空了部分画布
+        assertEquals(2, info.getKeyFrame(3));
+    }
+
+    @Test
+    public void sourceFrameDisposedToPreviousIsNotKeyFrame() {
+        ApngInfo info = new ApngInfo();
+        info.setImageHeader(IMAGE_INFO, false);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+
+        // 第3帧需要恢复第2帧之前的画布
+        assertEquals(0, info.getKeyFrame(2));
+        assertEquals(0, info.getKeyFrame(3));
+    }
+
+    @Test
+    public void rgbWithoutTransparencyIsOpaque() {
+        ApngInfo info = new ApngInfo();
+        info.setImageHeader(new ImageInfo(10, 10, 8, false), false);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        // 清空的区域被下一帧覆盖
+        addFrame(info, 1, 1, 6, 6, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        assertTrue(info.isOpaque());
+
+        // 有alpha通道
+        ApngInfo alphaInfo = new ApngInfo();
+        alphaInfo.setImageHeader(IMAGE_INFO, false);
+        addFrame(alphaInfo, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        assertFalse(alphaInfo.isOpaque());
+    }
+
+    @Test
+    public void uncoveredBackgroundDisposeIsNotOpaque() {
+        ApngInfo info = new ApngInfo();
+        info.setImageHeader(new ImageInfo(10, 10, 8, false), false);
+        addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(info, 3, 3, 2, 2, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        assertFalse(info.isOpaque());
+
+        // 覆盖清空区域的帧dispose为PREVIOUS, 恢复后清空的区域重新出现, 再下一帧没有覆盖
+        ApngInfo previousInfo = new ApngInfo();
+        previousInfo.setImageHeader(new ImageInfo(10, 10, 8, false), false);
+        addFrame(previousInfo, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(previousInfo, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(previousInfo, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(previousInfo, 0, 0, 1, 1, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        assertFalse(previousInfo.isOpaque());
+        // 再下一帧覆盖了恢复出来的区域
+        ApngInfo coveredInfo = new ApngInfo();
+        coveredInfo.setImageHeader(new ImageInfo(10, 10, 8, false), false);
+        addFrame(coveredInfo, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(coveredInfo, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(coveredInfo, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        addFrame(coveredInfo, 1, 1, 6, 6, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        assertTrue(coveredInfo.isOpaque());
+
+        // 第0帧没有覆盖整个画布
+        ApngInfo partialInfo = new ApngInfo();
+        partialInfo.setImageHeader(new ImageInfo(10, 10, 8, false), false);
+        addFrame(partialInfo, 0, 0, 5, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        addFrame(partialInfo, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        assertFalse(partialInfo.isOpaque());
+    }
+
+    @Test
+    public void savedInfoIsLoadedOnlyWhenConsistent() throws IOException {
+        File source = File.createTempFile("info", ".png");
+        File metaFile = new File(source.getParent(), ApngInfo.getFileName(source));
+        try {
+            FileOutputStream out = new FileOutputStream(source);
+            out.write(new byte[100]);
+            out.close();
+
+            ApngInfo info = new ApngInfo();
+            info.setImageHeader(IMAGE_INFO, false);
+            addFrame(info, 0, 0, 10, 10, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+            info.addFrameData(40, 20);
+            addFrame(info, 2, 2, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+            info.addFrameData(70, 10);
+            assertTrue(info.save(source));
+            ApngInfo loaded = new ApngInfo();
+            assertTrue(loaded.load(source));
+            assertEquals(2, loaded.frameCount);
+            assertEquals(1, loaded.frameChunkStart[1]);
+            assertEquals(0, loaded.getKeyFrame(1));
+
+            // 帧的第一个数据块序号超出数据块总数
+            info.frameChunkStart[1] = 5;
+            assertTrue(info.save(source));
+            assertFalse(new ApngInfo().load(source));
+            info.frameChunkStart[1] = 1;
+
+            // 数据块超出apng文件的范围
+            info.addFrameData(90, 20);
+            assertTrue(info.save(source));
+            assertFalse(new ApngInfo().load(source));
+        } finally {
+            source.delete();
+            metaFile.delete();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.foretree.apng;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import ar.com.hjg.pngj.FilterType;
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.ImageLineInt;
+import ar.com.hjg.pngj.PngWriter;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+import ar.com.hjg.pngj.chunks.PngChunkPLTE;
+import ar.com.hjg.pngj.chunks.PngChunkTRNS;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ApngPixelDecoder}的解压、去过滤和像素格式转换, 用pngj写出的png作为输入
+ */
+public class ApngPixelDecoderTest {
+
+    private static final int WIDTH = 7;
+    private static final int HEIGHT = 5;
+
+    @Test
+    public void decodesRgbaWithEveryFilterType() throws Exception {
+        ImageInfo imageInfo = new ImageInfo(WIDTH, HEIGHT, 8, true);
+        int[] expected = new int[WIDTH * HEIGHT];
+        Random random = new Random(1);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = random.nextInt();
+        }
+        FilterType[] filterTypes = {FilterType.FILTER_NONE, FilterType.FILTER_SUB, FilterType.FILTER_UP,
+                FilterType.FILTER_AVERAGE, FilterType.FILTER_PAETH};
+        for (FilterType filterType : filterTypes) {
+            File file = File.createTempFile("rgba", ".png");
+            try {
+                PngWriter writer = new PngWriter(file, imageInfo, true);
+                writer.setFilterType(filterType);
+                for (int y = 0; y < HEIGHT; y++) {
+                    ImageLineInt line = new ImageLineInt(imageInfo);
+                    for (int x = 0; x < WIDTH; x++) {
+                        int color = expected[y * WIDTH + x];
+                        line.getScanline()[x * 4] = (color >> 16) & 0xFF;
+                        line.getScanline()[x * 4 + 1] = (color >> 8) & 0xFF;
+                        line.getScanline()[x * 4 + 2] = color & 0xFF;
+                        line.getScanline()[x * 4 + 3] = color >>> 24;
+                    }
+                    writer.writeRow(line);
+                }
+                writer.end();
+
+                assertArrayEquals(filterType.name(), expected, decode(file, createInfo(file, imageInfo)));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void decodesPackedPaletteWithTransparency() throws Exception {
+        ImageInfo imageInfo = new ImageInfo(WIDTH, HEIGHT, 2, false, false, true);
+        PngChunkPLTE plte = new PngChunkPLTE(imageInfo);
+        plte.setNentries(4);
+        plte.setEntry(0, 255, 0, 0);
+        plte.setEntry(1, 0, 255, 0);
+        plte.setEntry(2, 0, 0, 255);
+        plte.setEntry(3, 255, 255, 255);
+        PngChunkTRNS trns = new PngChunkTRNS(imageInfo);
+        trns.setPalAlpha(new int[]{0, 128});
+
+        File file = File.createTempFile("palette", ".png");
+        try {
+            PngWriter writer = new PngWriter(file, imageInfo, true);
+            writer.getMetadata().queueChunk(plte);
+            writer.getMetadata().queueChunk(trns);
+            for (int y = 0; y < HEIGHT; y++) {
+                ImageLineInt line = new ImageLineInt(imageInfo);
+                for (int x = 0; x < WIDTH; x++) {
+                    line.getScanline()[x] = (x + y) % 4;
+                }
+                writer.writeRow(line);
+            }
+            writer.end();
+
+            ApngInfo info = createInfo(file, imageInfo);
+            info.setPalette(plte);
+            info.setTransparency(trns);
+            int[] pixels = decode(file, info);
+
+            int[] colors = {0x00FF0000, 0x8000FF00, 0xFF0000FF, 0xFFFFFFFF};
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals(colors[(x + y) % 4], pixels[y * WIDTH + x]);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void decodesEverySampledPixel() throws Exception {
+        ImageInfo imageInfo = new ImageInfo(WIDTH, HEIGHT, 8, false);
+        File file = File.createTempFile("rgb", ".png");
+        try {
+            PngWriter writer = new PngWriter(file, imageInfo, true);
+            for (int y = 0; y < HEIGHT; y++) {
+                ImageLineInt line = new ImageLineInt(imageInfo);
+                for (int x = 0; x < WIDTH; x++) {
+                    line.getScanline()[x * 3] = x * 10;
+                    line.getScanline()[x * 3 + 1] = y * 10;
+                    line.getScanline()[x * 3 + 2] = 0;
+                }
+                writer.writeRow(line);
+            }
+            writer.end();
+
+            // 7x5缩小2倍为3x2, 取第0、2、4列和第0、2行
+            int[] pixels = new int[3 * 2];
+            ApngPixelDecoder decoder = new ApngPixelDecoder(createInfo(file, imageInfo));
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                assertTrue(decoder.decode(input, 0, pixels, 0, 3, 2));
+            } finally {
+                input.close();
+                decoder.release();
+            }
+            for (int y = 0; y < 2; y++) {
+                for (int x = 0; x < 3; x++) {
+                    assertEquals(0xFF000000 | (x * 2 * 10) << 16 | (y * 2 * 10) << 8, pixels[y * 3 + x]);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedFormats() {
+        assertTrue(ApngPixelDecoder.isSupported(ApngPixelDecoder.COLOR_TYPE_PALETTE, 4, false));
+        assertTrue(ApngPixelDecoder.isSupported(ApngPixelDecoder.COLOR_TYPE_RGB, 8, false));
+        assertFalse(ApngPixelDecoder.isSupported(ApngPixelDecoder.COLOR_TYPE_RGBA, 16, false));
+        assertFalse(ApngPixelDecoder.isSupported(ApngPixelDecoder.COLOR_TYPE_RGBA, 8, true));
+    }
+
+    private static int[] decode(File file, ApngInfo info) throws Exception {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        ApngPixelDecoder decoder = new ApngPixelDecoder(info);
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            assertTrue(decoder.decode(input, 0, pixels, 0, WIDTH));
+        } finally {
+            input.close();
+            decoder.release();
+        }
+        return pixels;
+    }
+
+    // 用一个覆盖整个画布的fcTL描述这张png, 并记录所有IDAT的位置
+    private static ApngInfo createInfo(File file, ImageInfo imageInfo) throws IOException {
+        ApngInfo info = new ApngInfo();
+        info.setImageHeader(imageInfo, false);
+        PngChunkFCTL fctl = new PngChunkFCTL(imageInfo);
+        fctl.setWidth(imageInfo.cols);
+        fctl.setHeight(imageInfo.rows);
+        info.addFrame(fctl);
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            long offset = 8;
+            in.skipBytes(8);
+            while (true) {
+                int length = in.readInt();
+                byte[] type = new byte[4];
+                in.readFully(type);
+                String id = new String(type, "US-ASCII");
+                if (id.equals("IDAT")) info.addFrameData(offset + 8, length);
+                if (id.equals("IEND")) break;
+                in.skipBytes(length + 4);
+                offset += length + 12;
+            }
+        } finally {
+            in.close();
+        }
+        return info;
+    }
+}
@@ -0,0 +1,137 @@
+package com.foretree.apng;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ApngStreamLoader}在请求取消后停止下载, 用本地的http服务模拟分段到达的数据
+ */
+public class ApngStreamLoaderTest {
+
+    private static final int[][] FRAME_SIZES = {{16, 16}, {16, 16}, {16, 16}};
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private byte[] apng;
+    private File cacheFile;
+    private File partFile;
+    private ServerSocket serverSocket;
+    private final CountDownLatch sendRest = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        apng = ApngTestFiles.createApng(FRAME_SIZES);
+        cacheFile = File.createTempFile("stream", ".png");
+        cacheFile.delete();
+        partFile = new File(cacheFile.getPath() + ".part");
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sendRest.countDown();
+        serverSocket.close();
+        cacheFile.delete();
+        partFile.delete();
+    }
+
+    @Test
+    public void cancelAfterFirstFrameStopsDownload() throws Exception {
+        // 先发送到第二帧的fcTL, 此时第一帧可以播放
+        serve(ApngTestFiles.endOfFrameControl(apng, 1));
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        ApngExtractFrames.LoadResult result = ApngStreamLoader.load(uri(), cacheFile, cancelled);
+        assertNotNull(result);
+        assertEquals(1, result.frameSource.getFrameCount());
+
+        // 第一帧到达后马上取消, 与ApngImageLoader的处理相同: 释放已经拿到的帧数据来源
+        cancelled.set(true);
+        result.frameSource.release();
+        sendRest.countDown();
+
+        assertTrue("part file should be deleted", waitUntilDeleted(partFile));
+        assertFalse(cacheFile.exists());
+    }
+
+    @Test
+    public void cancelBeforeFirstFrameReturnsNull() throws Exception {
+        // 只发送文件头, 第一帧还没有到达
+        serve(ApngTestFiles.endOfFrameControl(apng, 0));
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                cancelled.set(true);
+            }
+        }).start();
+        assertNull(ApngStreamLoader.load(uri(), cacheFile, cancelled));
+        sendRest.countDown();
+
+        assertTrue("part file should be deleted", waitUntilDeleted(partFile));
+        assertFalse(cacheFile.exists());
+    }
+
+    private String uri() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/test.png";
+    }
+
+    // 先发送前firstLength个字节, 等到sendRest之后再发送剩下的数据
+    private void serve(final int firstLength) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    InputStream request = socket.getInputStream();
+                    // 读到请求头结束
+                    int matched = 0;
+                    while (matched < 4) {
+                        int b = request.read();
+                        if (b < 0) break;
+                        matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+                    }
+                    OutputStream response = socket.getOutputStream();
+                    response.write(("HTTP/1.0 200 OK\r\nContent-Length: " + apng.length + "\r\n\r\n").getBytes("US-ASCII"));
+                    response.write(apng, 0, firstLength);
+                    response.flush();
+                    sendRest.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    response.write(apng, firstLength, apng.length - firstLength);
+                    response.flush();
+                    socket.close();
+                } catch (Exception e) {
+                    // 下载停止后连接被关闭
+                }
+            }
+        }).start();
+    }
+
+    private static boolean waitUntilDeleted(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (file.exists()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+}
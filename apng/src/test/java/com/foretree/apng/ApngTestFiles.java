@@ -0,0 +1,125 @@
+package com.foretree.apng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 测试中使用的手工拼出的apng
+ */
+final class ApngTestFiles {
+
+    static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private ApngTestFiles() {
+    }
+
+    /**
+     * 8位RGBA的apng, 第一帧为默认图片(IDAT), 之后的帧为fdAT, 画布为第一帧的大小
+     *
+     * @param frameSizes 每帧的宽高
+     */
+    static byte[] createApng(int[][] frameSizes) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        out.write(PNG_SIGNATURE);
+        writeChunk(out, "IHDR", header(frameSizes[0][0], frameSizes[0][1]));
+        ByteArrayOutputStream actl = new ByteArrayOutputStream();
+        DataOutputStream actlOut = new DataOutputStream(actl);
+        actlOut.writeInt(frameSizes.length);
+        actlOut.writeInt(0);
+        writeChunk(out, "acTL", actl.toByteArray());
+        int sequence = 0;
+        for (int i = 0; i < frameSizes.length; i++) {
+            ByteArrayOutputStream fctl = new ByteArrayOutputStream();
+            DataOutputStream fctlOut = new DataOutputStream(fctl);
+            fctlOut.writeInt(sequence++);
+            fctlOut.writeInt(frameSizes[i][0]);
+            fctlOut.writeInt(frameSizes[i][1]);
+            fctlOut.writeInt(0);
+            fctlOut.writeInt(0);
+            fctlOut.writeShort(1);
+            fctlOut.writeShort(10);
+            fctlOut.writeByte(0);
+            fctlOut.writeByte(0);
+            writeChunk(out, "fcTL", fctl.toByteArray());
+
+            byte[] pixels = compress(frameSizes[i][0], frameSizes[i][1], i);
+            if (i == 0) {
+                writeChunk(out, "IDAT", pixels);
+            } else {
+                ByteArrayOutputStream fdat = new ByteArrayOutputStream();
+                new DataOutputStream(fdat).writeInt(sequence++);
+                fdat.write(pixels);
+                writeChunk(out, "fdAT", fdat.toByteArray());
+            }
+        }
+        writeChunk(out, "IEND", new byte[0]);
+        out.close();
+        return data.toByteArray();
+    }
+
+    /**
+     * @return 第frameIndex帧的fcTL块结束的位置, 读到这里时前frameIndex帧的数据都已经完整
+     */
+    static int endOfFrameControl(byte[] apng, int frameIndex) {
+        int offset = PNG_SIGNATURE.length;
+        int found = -1;
+        while (offset < apng.length) {
+            int length = readInt(apng, offset);
+            String id = new String(apng, offset + 4, 4);
+            offset += length + 12;
+            if (id.equals("fcTL") && ++found == frameIndex) return offset;
+        }
+        throw new IllegalArgumentException("no fcTL for frame " + frameIndex);
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static byte[] header(int width, int height) throws IOException {
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+        DataOutputStream ihdrOut = new DataOutputStream(ihdr);
+        ihdrOut.writeInt(width);
+        ihdrOut.writeInt(height);
+        ihdrOut.writeByte(8); // 位深
+        ihdrOut.writeByte(6); // RGBA
+        ihdrOut.writeByte(0);
+        ihdrOut.writeByte(0);
+        ihdrOut.writeByte(0);
+        return ihdr.toByteArray();
+    }
+
+    // 每行一个过滤类型字节(0)加上RGBA像素
+    private static byte[] compress(int width, int height, int seed) {
+        byte[] raw = new byte[(width * 4 + 1) * height];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = i % (width * 4 + 1) == 0 ? 0 : (byte) (i * 31 + seed);
+        }
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    private static void writeChunk(DataOutputStream out, String id, byte[] data) throws IOException {
+        byte[] type = id.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(type);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}